@@ -0,0 +1,42 @@
+package corpus;
+
+/**
+ * Short doctests of the most common kind: a few javascript expressions
+ * and their one-line results.
+ * @doc.test
+ *   Arithmetic and strings:
+ *   js> 1+2
+ *   3
+ *   js> "abc".toUpperCase()
+ *   ABC
+ *   js> [1,2,3].map(function(x) { return x*x; }).join(",")
+ *   1,4,9
+ * @doc.test
+ *   Statements can span several lines:
+ *   js> function fact(n) {
+ *     >   return (n <= 1) ? 1 : n * fact(n-1);
+ *     > }
+ *   js> fact(10)
+ *   3628800
+ *   js> var total = 0
+ *   js> for (var i=0; i<100; i++) {
+ *     >   total += i;
+ *     > }
+ *   4950
+ *   js> total
+ *   4950
+ * @doc.test
+ *   Expressions without a value print nothing:
+ *   js> var x = 42
+ *   js> x
+ *   42
+ *   js> undefined
+ *   js> null
+ *   null
+ * @doc.test (EXPECT FAIL)
+ *   A failing test, whose output differs from the expected output in a
+ *   single word:
+ *   js> "the quick brown fox jumps over the lazy dog"
+ *   the quick brown cat jumps over the lazy dog
+ */
+class Basics { }
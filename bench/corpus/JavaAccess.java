@@ -0,0 +1,43 @@
+package corpus;
+
+/**
+ * Doctests which exercise Java objects, as most real doctests do.
+ * @doc.test
+ *   Java collections:
+ *   js> var m = new java.util.TreeMap()
+ *   js> m.put("b", 2); m.put("a", 1); m.put("c", 3)
+ *   null
+ *   js> m
+ *   {a=1.0, b=2.0, c=3.0}
+ *   js> var l = new java.util.ArrayList()
+ *   js> for (var i=0; i<5; i++) l.add(i*i)
+ *   true
+ *   js> l.size()
+ *   5
+ *   js> l.get(4)
+ *   16.0
+ * @doc.test
+ *   Strings and builders:
+ *   js> var sb = new java.lang.StringBuilder()
+ *   js> for (var i=0; i<10; i++) sb.append(String(i))
+ *   0123456789
+ *   js> sb.reverse().toString()
+ *   9876543210
+ *   js> java.lang.String.format("%5s|%-4s|", "42", "ab")
+ *      42|ab  |
+ * @doc.test
+ *   Exceptions thrown by Java code:
+ *   js> try {
+ *     >   java.lang.Integer.parseInt("forty-two");
+ *     > } catch (e) {
+ *     >   print(e.javaException.getClass().getName())
+ *     > }
+ *   java.lang.NumberFormatException
+ * @doc.test
+ *   Object hashes in the output are ignored:
+ *   js> o = new java.lang.Object()
+ *   java.lang.Object@1d2068d
+ *   js> o
+ *   java.lang.Object@1d2068d
+ */
+class JavaAccess { }
@@ -0,0 +1,99 @@
+package corpus;
+
+/**
+ * Doctests with long outputs, and markup which has to be escaped when
+ * they are typeset.
+ * @doc.test
+ *   A table of squares, one per line:
+ *   js> for (var i=0; i<60; i++) print(i+" * "+i+" = "+(i*i))
+ *   0 * 0 = 0
+ *   1 * 1 = 1
+ *   2 * 2 = 4
+ *   3 * 3 = 9
+ *   4 * 4 = 16
+ *   5 * 5 = 25
+ *   6 * 6 = 36
+ *   7 * 7 = 49
+ *   8 * 8 = 64
+ *   9 * 9 = 81
+ *   10 * 10 = 100
+ *   11 * 11 = 121
+ *   12 * 12 = 144
+ *   13 * 13 = 169
+ *   14 * 14 = 196
+ *   15 * 15 = 225
+ *   16 * 16 = 256
+ *   17 * 17 = 289
+ *   18 * 18 = 324
+ *   19 * 19 = 361
+ *   20 * 20 = 400
+ *   21 * 21 = 441
+ *   22 * 22 = 484
+ *   23 * 23 = 529
+ *   24 * 24 = 576
+ *   25 * 25 = 625
+ *   26 * 26 = 676
+ *   27 * 27 = 729
+ *   28 * 28 = 784
+ *   29 * 29 = 841
+ *   30 * 30 = 900
+ *   31 * 31 = 961
+ *   32 * 32 = 1024
+ *   33 * 33 = 1089
+ *   34 * 34 = 1156
+ *   35 * 35 = 1225
+ *   36 * 36 = 1296
+ *   37 * 37 = 1369
+ *   38 * 38 = 1444
+ *   39 * 39 = 1521
+ *   40 * 40 = 1600
+ *   41 * 41 = 1681
+ *   42 * 42 = 1764
+ *   43 * 43 = 1849
+ *   44 * 44 = 1936
+ *   45 * 45 = 2025
+ *   46 * 46 = 2116
+ *   47 * 47 = 2209
+ *   48 * 48 = 2304
+ *   49 * 49 = 2401
+ *   50 * 50 = 2500
+ *   51 * 51 = 2601
+ *   52 * 52 = 2704
+ *   53 * 53 = 2809
+ *   54 * 54 = 2916
+ *   55 * 55 = 3025
+ *   56 * 56 = 3136
+ *   57 * 57 = 3249
+ *   58 * 58 = 3364
+ *   59 * 59 = 3481
+ * @doc.test
+ *   Markup in the description <b>and</b> the output: a &lt; b &amp;&amp; "c"
+ *   js> "<a href=\"x\">" + (1 < 2) + " & " + (3 > 4) + "</a>"
+ *   <a href="x">true & false</a>
+ *   js> ["<", ">", "&", "\""].join(" ")
+ *   < > & "
+ * @doc.test (EXPECT FAIL)
+ *   A long output with a few differences near the end:
+ *   js> for (var i=0; i<20; i++) print("line "+i+": "+"abcdefghij".substring(0, i%10))
+ *   line 0: 
+ *   line 1: a
+ *   line 2: ab
+ *   line 3: abc
+ *   line 4: abcd
+ *   line 5: abcde
+ *   line 6: abcdef
+ *   line 7: abcdefg
+ *   line 8: abcdefgh
+ *   line 9: abcdefghi
+ *   line 10: 
+ *   line 11: a
+ *   line 12: ab
+ *   line 13: abc
+ *   line 14: abcd
+ *   line 15: abXde
+ *   line 16: abcdef
+ *   line 17: abcdefg
+ *   line 18: abcdefgh
+ *   line 19: abcdefgh
+ */
+class LongOutput { }
@@ -0,0 +1,68 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.javadoc.DocErrorReporter;
+import com.sun.javadoc.SourcePosition;
+
+/**
+ * The doctests the benchmarks run: all the <code>@doc.test</code> blocks
+ * in the java sources beneath the directory named by the
+ * {@code net.cscott.jdoctest.bench.corpus} property (by default,
+ * {@code bench/corpus}).  The checked-in corpus is meant to look like
+ * real doctests: mostly short passing tests, some with Java objects, and
+ * a few long outputs and expected failures.
+ * @author C. Scott Ananian
+ */
+class Corpus {
+    private Corpus() { }
+
+    /** Return the doctests in the corpus, in a fixed order. */
+    static List<DoctestExtractor.Doctest> doctests() throws IOException {
+        File dir = new File(System.getProperty
+                            ("net.cscott.jdoctest.bench.corpus",
+                             "bench/corpus"));
+        List<File> sources = new ArrayList<File>();
+        DoctestExtractor.collectSources(dir, sources);
+        if (sources.isEmpty())
+            throw new IOException("No doctest corpus in "+dir);
+        List<DoctestExtractor.Doctest> result =
+            new ArrayList<DoctestExtractor.Doctest>();
+        for (File f : sources)
+            result.addAll(DoctestExtractor.extract(f));
+        return result;
+    }
+
+    /** Return the text of the given doctest as {@link JDoctest} would
+     *  emit it, to be rerun by {@link JsJUnitTestBridge}. */
+    static String emitted(DoctestExtractor.Doctest dt) {
+        String text = JDoctest.stripIndentation(dt.text);
+        String prologue = JDoctest.prologue(dt.packageName);
+        return dt+"\n\n"+(prologue == null ? text :
+                          text.replaceFirst("js>", "js> "+prologue+"\njs>"));
+    }
+
+    /** Return the source position of the given doctest. */
+    static SourcePosition position(final DoctestExtractor.Doctest dt) {
+        return new SourcePosition() {
+            public File file() { return dt.file; }
+            public int line() { return dt.line; }
+            public int column() { return 0; }
+            public String toString() { return dt.toString(); }
+        };
+    }
+
+    /** An error reporter which ignores everything, so that the expected
+     *  failures in the corpus don't flood the benchmark output. */
+    static final DocErrorReporter QUIET = new DocErrorReporter() {
+        public void printError(String msg) { }
+        public void printError(SourcePosition pos, String msg) { }
+        public void printWarning(String msg) { }
+        public void printWarning(SourcePosition pos, String msg) { }
+        public void printNotice(String msg) { }
+        public void printNotice(SourcePosition pos, String msg) { }
+    };
+}
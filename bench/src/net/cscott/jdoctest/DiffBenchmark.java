@@ -0,0 +1,79 @@
+package net.cscott.jdoctest;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark the diff shown for a failed doctest, for a small output (a
+ * single changed word) and a large one (the text of the whole
+ * {@link Corpus}, with every seventh line changed).  The semantic cleanup
+ * of the raw diff is also measured on its own.
+ * @author C. Scott Ananian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class DiffBenchmark {
+    @Param({"small", "large"})
+    public String size;
+    private String expected, actual;
+    private final diff_match_patch differ = new diff_match_patch() {{
+        Diff_Timeout = 0;
+    }};
+    private diff_match_patch.DiffList raw;
+
+    @Setup
+    public void setup() throws IOException {
+        if (size.equals("small")) {
+            expected = "the quick brown cat jumps over the lazy dog";
+            actual = "the quick brown fox jumps over the lazy dog";
+        } else {
+            StringBuilder a = new StringBuilder(), b = new StringBuilder();
+            int line = 0;
+            for (DoctestExtractor.Doctest dt : Corpus.doctests()) {
+                for (String s :
+                         JDoctest.stripIndentation(dt.text).split("\n")) {
+                    a.append(s).append('\n');
+                    b.append((line++ % 7 == 3) ? s+" (changed)" : s)
+                        .append('\n');
+                }
+            }
+            expected = a.toString();
+            actual = b.toString();
+        }
+        raw = differ.diff_mainList(expected, actual, false);
+    }
+
+    @Benchmark
+    public int appendDiff() {
+        StringBuilder html = new StringBuilder(), text = new StringBuilder();
+        DiffEngine.DEFAULT.appendDiff(expected, actual, html, text);
+        return html.length() + text.length();
+    }
+
+    @Benchmark
+    public int cleanupSemantic() {
+        diff_match_patch.DiffList diffs =
+            new diff_match_patch.DiffList(raw.size());
+        diffs.addAll(raw);
+        differ.diff_cleanupSemantic(diffs);
+        return diffs.size();
+    }
+}
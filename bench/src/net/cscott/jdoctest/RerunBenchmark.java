@@ -0,0 +1,49 @@
+package net.cscott.jdoctest;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark rerunning the emitted form of every doctest in the
+ * {@link Corpus} with {@link JsJUnitTestBridge}, as
+ * {@link RerunJDoctests} and the {@link JDoctestServer} do.
+ * @author C. Scott Ananian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class RerunBenchmark {
+    private String[] sources, texts;
+
+    @Setup
+    public void setup() throws IOException {
+        List<DoctestExtractor.Doctest> corpus = Corpus.doctests();
+        sources = new String[corpus.size()];
+        texts = new String[corpus.size()];
+        for (int i=0; i<corpus.size(); i++) {
+            sources[i] = corpus.get(i).toString();
+            texts[i] = Corpus.emitted(corpus.get(i));
+        }
+    }
+
+    @Benchmark
+    public void runDoctest() {
+        for (int i=0; i<texts.length; i++)
+            JsJUnitTestBridge.runDoctest(sources[i], texts[i]);
+    }
+}
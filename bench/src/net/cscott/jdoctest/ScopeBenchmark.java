@@ -0,0 +1,49 @@
+package net.cscott.jdoctest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark the creation of the scope each doctest runs in.  Add
+ * <code>-jvmArgsAppend -Dnet.cscott.jdoctest.sharedScope=true</code>
+ * to the JMH arguments to measure the shared-scope mode instead.
+ * @author C. Scott Ananian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class ScopeBenchmark {
+    private Context cx;
+
+    @Setup
+    public void setup() {
+        cx = new JDoctest.JDoctestContextFactory().enterContext();
+    }
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    /** Build a {@link org.mozilla.javascript.tools.shell.Global} (or
+     *  reuse the shared one) and a scope for a single doctest. */
+    @Benchmark
+    public Scriptable newScope() {
+        return DoctestScope.newScope(cx, DoctestScope.global(cx));
+    }
+}
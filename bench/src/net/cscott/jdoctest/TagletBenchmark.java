@@ -0,0 +1,76 @@
+package net.cscott.jdoctest;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sun.javadoc.SourcePosition;
+
+/**
+ * Benchmarks of the work the {@link JDoctest} taglet does for each
+ * <code>@doc.test</code> tag, over the whole {@link Corpus}.
+ * @author C. Scott Ananian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class TagletBenchmark {
+    private List<DoctestExtractor.Doctest> corpus;
+    private SourcePosition[] positions;
+    /** The corpus tests, with indentation stripped. */
+    private String[] texts;
+    private JDoctest taglet;
+
+    @Setup
+    public void setup() throws IOException {
+        corpus = Corpus.doctests();
+        positions = new SourcePosition[corpus.size()];
+        texts = new String[corpus.size()];
+        for (int i=0; i<corpus.size(); i++) {
+            positions[i] = Corpus.position(corpus.get(i));
+            texts[i] = JDoctest.stripIndentation(corpus.get(i).text);
+        }
+        taglet = new JDoctest(Corpus.QUIET);
+    }
+
+    /** Run, report and typeset every doctest, as javadoc does. */
+    @Benchmark
+    public int doOne() {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<positions.length; i++) {
+            DoctestExtractor.Doctest dt = corpus.get(i);
+            taglet.doOne(dt.packageName, positions[i], dt.tagNum, dt.text,
+                         sb);
+        }
+        return sb.length();
+    }
+
+    @Benchmark
+    public int expectFail() {
+        int n = 0;
+        for (String t : texts)
+            if (Patterns.expectFail(t)) n++;
+        return n;
+    }
+
+    @Benchmark
+    public void htmlEscape(Blackhole bh) {
+        for (String t : texts)
+            bh.consume(JDoctest.html_escape(t));
+    }
+}
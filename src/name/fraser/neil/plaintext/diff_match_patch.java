@@ -24,12 +24,12 @@ import java.net.URLEncoder;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,7 +43,186 @@ import java.util.regex.Pattern;
 
 /**
  * Class containing the diff, match and patch methods.
- * Also contains the behaviour settings.
+ * Also contains the behaviour settings.  An instance may be used by
+ * several threads at once, as long as its settings are not changed;
+ * the scratch space of a diff is kept per thread.
+ * @doc.test
+ *   A DiffList can be built, changed and copied like a LinkedList:
+ *   js> var Op = diff_match_patch.Operation
+ *   js> var d = new diff_match_patch.DiffList()
+ *   js> d.add(Op.EQUAL, "a"); d.add(Op.DELETE, "b")
+ *   js> var more = new diff_match_patch.DiffList(0)
+ *   js> more.add(Op.INSERT, "c"); d.addAll(more); d
+ *   [Diff(EQUAL,"a"), Diff(DELETE,"b"), Diff(INSERT,"c")]
+ *   js> d.set(1, Op.INSERT, "x"); d.setText(2, "y"); d.removeLast()
+ *   js> [d.size(), d.operation(1), d.text(1)].join()
+ *   2,INSERT,x
+ *   js> try { d.text(2) } catch (ex) { ex.javaException.getMessage() }
+ *   Index: 2, Size: 2
+ *   js> String(new diff_match_patch.DiffList(d.toLinkedList())) == String(d)
+ *   true
+ * @doc.test
+ *   diff_cleanupMerge (from the upstream diff_match_patch_test), on a
+ *   DiffList and on a LinkedList:
+ *   js> var dmp = new diff_match_patch(), Op = diff_match_patch.Operation
+ *   js> function merge() {
+ *     >   var d = new diff_match_patch.DiffList();
+ *     >   for (var i = 0; i < arguments.length; i += 2)
+ *     >     d.add(Op[arguments[i]], arguments[i + 1]);
+ *     >   dmp.diff_cleanupMerge(d);
+ *     >   return d;
+ *     > }
+ *   js> merge()
+ *   []
+ *   js> merge("EQUAL", "a", "DELETE", "b", "INSERT", "c")
+ *   [Diff(EQUAL,"a"), Diff(DELETE,"b"), Diff(INSERT,"c")]
+ *   js> merge("EQUAL", "a", "EQUAL", "b", "EQUAL", "c")
+ *   [Diff(EQUAL,"abc")]
+ *   js> merge("DELETE", "a", "DELETE", "b", "DELETE", "c")
+ *   [Diff(DELETE,"abc")]
+ *   js> merge("DELETE", "a", "INSERT", "b", "DELETE", "c", "INSERT", "d",
+ *     >       "EQUAL", "e", "EQUAL", "f")
+ *   [Diff(DELETE,"ac"), Diff(INSERT,"bd"), Diff(EQUAL,"ef")]
+ *   js> merge("DELETE", "a", "INSERT", "abc", "DELETE", "dc")
+ *   [Diff(EQUAL,"a"), Diff(DELETE,"d"), Diff(INSERT,"b"), Diff(EQUAL,"c")]
+ *   js> merge("EQUAL", "x", "DELETE", "a", "INSERT", "abc", "DELETE", "dc",
+ *     >       "EQUAL", "y")
+ *   [Diff(EQUAL,"xa"), Diff(DELETE,"d"), Diff(INSERT,"b"), Diff(EQUAL,"cy")]
+ *   js> merge("EQUAL", "a", "INSERT", "ba", "EQUAL", "c")
+ *   [Diff(INSERT,"ab"), Diff(EQUAL,"ac")]
+ *   js> merge("EQUAL", "c", "INSERT", "ab", "EQUAL", "a")
+ *   [Diff(EQUAL,"ca"), Diff(INSERT,"ba")]
+ *   js> merge("EQUAL", "a", "DELETE", "b", "EQUAL", "c", "DELETE", "ac",
+ *     >       "EQUAL", "x")
+ *   [Diff(DELETE,"abc"), Diff(EQUAL,"acx")]
+ *   js> merge("EQUAL", "x", "DELETE", "ca", "EQUAL", "c", "DELETE", "b",
+ *     >       "EQUAL", "a")
+ *   [Diff(EQUAL,"xca"), Diff(DELETE,"cba")]
+ *   js> var list = merge("EQUAL", "a", "EQUAL", "b").toLinkedList()
+ *   js> list.add(new diff_match_patch.Diff(Op.EQUAL, "c"))
+ *   true
+ *   js> dmp.diff_cleanupMerge(list); list
+ *   [Diff(EQUAL,"abc")]
+ * @doc.test
+ *   diff_cleanupSemantic and diff_cleanupSemanticLossless (from the
+ *   upstream diff_match_patch_test):
+ *   js> var dmp = new diff_match_patch(), Op = diff_match_patch.Operation
+ *   js> function diffs(args) {
+ *     >   var d = new diff_match_patch.DiffList();
+ *     >   for (var i = 0; i < args.length; i += 2)
+ *     >     d.add(Op[args[i]], args[i + 1]);
+ *     >   return d;
+ *     > }
+ *   js> function semantic() {
+ *     >   var d = diffs(arguments);
+ *     >   dmp.diff_cleanupSemantic(d);
+ *     >   return d;
+ *     > }
+ *   js> function lossless() {
+ *     >   var d = diffs(arguments);
+ *     >   dmp.diff_cleanupSemanticLossless(d);
+ *     >   return d;
+ *     > }
+ *   js> semantic()
+ *   []
+ *   js> semantic("DELETE", "ab", "INSERT", "cd", "EQUAL", "12", "DELETE", "e")
+ *   [Diff(DELETE,"ab"), Diff(INSERT,"cd"), Diff(EQUAL,"12"), Diff(DELETE,"e")]
+ *   js> semantic("DELETE", "a", "EQUAL", "b", "DELETE", "c")
+ *   [Diff(DELETE,"abc"), Diff(INSERT,"b")]
+ *   js> semantic("DELETE", "ab", "EQUAL", "cd", "DELETE", "e", "EQUAL", "f",
+ *     >          "INSERT", "g")
+ *   [Diff(DELETE,"abcdef"), Diff(INSERT,"cdfg")]
+ *   js> semantic("INSERT", "1", "EQUAL", "A", "DELETE", "B", "INSERT", "2",
+ *     >          "EQUAL", "_", "INSERT", "1", "EQUAL", "A", "DELETE", "B",
+ *     >          "INSERT", "2")
+ *   [Diff(DELETE,"AB_AB"), Diff(INSERT,"1A2_1A2")]
+ *   js> semantic("EQUAL", "The c", "DELETE", "ow and the c", "EQUAL", "at.")
+ *   [Diff(EQUAL,"The "), Diff(DELETE,"cow and the "), Diff(EQUAL,"cat.")]
+ *   js> semantic("DELETE", "abcxxx", "INSERT", "xxxdef")
+ *   [Diff(DELETE,"abc"), Diff(EQUAL,"xxx"), Diff(INSERT,"def")]
+ *   js> semantic("DELETE", "xxxabc", "INSERT", "defxxx")
+ *   [Diff(INSERT,"def"), Diff(EQUAL,"xxx"), Diff(DELETE,"abc")]
+ *   js> semantic("DELETE", "abcd1212", "INSERT", "1212efghi", "EQUAL", "----",
+ *     >          "DELETE", "A3", "INSERT", "3BC")
+ *   [Diff(DELETE,"abcd"), Diff(EQUAL,"1212"), Diff(INSERT,"efghi"), Diff(EQUAL,"----"), Diff(DELETE,"A"), Diff(EQUAL,"3"), Diff(INSERT,"BC")]
+ *   js> lossless("EQUAL", "The xxx. The ", "INSERT", "zzz. The ",
+ *     >          "EQUAL", "yyy.")
+ *   [Diff(EQUAL,"The xxx."), Diff(INSERT," The zzz."), Diff(EQUAL," The yyy.")]
+ *   js> String(lossless("EQUAL", "AAA\r\n\r\nBBB",
+ *     >                 "INSERT", "\r\nDDD\r\n\r\nBBB",
+ *     >                 "EQUAL", "\r\nEEE")).replace(/\r/g, "~")
+ *     >   .split(String.fromCharCode(182)).join("|")
+ *   [Diff(EQUAL,"AAA~|~|"), Diff(INSERT,"BBB~|DDD~|~|"), Diff(EQUAL,"BBB~|EEE")]
+ *   js> lossless("EQUAL", "a", "DELETE", "a", "EQUAL", "ax")
+ *   [Diff(DELETE,"a"), Diff(EQUAL,"aax")]
+ * @doc.test
+ *   diff_cleanupEfficiency (from the upstream diff_match_patch_test):
+ *   js> var dmp = new diff_match_patch(), Op = diff_match_patch.Operation
+ *   js> function efficiency() {
+ *     >   var d = new diff_match_patch.DiffList();
+ *     >   for (var i = 0; i < arguments.length; i += 2)
+ *     >     d.add(Op[arguments[i]], arguments[i + 1]);
+ *     >   dmp.diff_cleanupEfficiency(d);
+ *     >   return d;
+ *     > }
+ *   js> efficiency()
+ *   []
+ *   js> efficiency("DELETE", "ab", "INSERT", "12", "EQUAL", "wxyz",
+ *     >            "DELETE", "cd", "INSERT", "34")
+ *   [Diff(DELETE,"ab"), Diff(INSERT,"12"), Diff(EQUAL,"wxyz"), Diff(DELETE,"cd"), Diff(INSERT,"34")]
+ *   js> efficiency("DELETE", "ab", "INSERT", "12", "EQUAL", "xyz",
+ *     >            "DELETE", "cd", "INSERT", "34")
+ *   [Diff(DELETE,"abxyzcd"), Diff(INSERT,"12xyz34")]
+ *   js> efficiency("INSERT", "12", "EQUAL", "x", "DELETE", "cd",
+ *     >            "INSERT", "34")
+ *   [Diff(DELETE,"xcd"), Diff(INSERT,"12x34")]
+ *   js> efficiency("DELETE", "ab", "INSERT", "12", "EQUAL", "xy",
+ *     >            "INSERT", "34", "EQUAL", "z", "DELETE", "cd",
+ *     >            "INSERT", "56")
+ *   [Diff(DELETE,"abxyzcd"), Diff(INSERT,"12xy34z56")]
+ *   js> dmp.Diff_EditCost = 5
+ *   5
+ *   js> efficiency("DELETE", "ab", "INSERT", "12", "EQUAL", "wxyz",
+ *     >            "DELETE", "cd", "INSERT", "34")
+ *   [Diff(DELETE,"abwxyzcd"), Diff(INSERT,"12wxyz34")]
+ * @doc.test
+ *   Line mode gives the same result as a character diff when every line
+ *   changes, and keeps its equalities when there are more than 65,535
+ *   distinct lines:
+ *   js> var dmp = new diff_match_patch()
+ *   js> dmp.Diff_Timeout = 0
+ *   0
+ *   js> function repeat(s, n) { var r = ""; while (n-- > 0) r += s; return r; }
+ *   js> var a = repeat("1234567890\n", 13), b = repeat("abcdefghij\n", 13)
+ *   js> String(dmp.diff_main(a, b, true)) == String(dmp.diff_main(a, b, false))
+ *   true
+ *   js> var a = repeat("1234567890", 13), b = repeat("abcdefghij", 13)
+ *   js> String(dmp.diff_main(a, b, true)) == String(dmp.diff_main(a, b, false))
+ *   true
+ *   js> var lines1 = [], lines2 = []
+ *   js> while (lines1.length < 70000) {
+ *     >   var n = lines1.length;
+ *     >   lines1.push("line " + n + "\n");
+ *     >   lines2.push((n % 10000 == 5000) ? "line " + n + " changed\n"
+ *     >               : lines1[n]);
+ *     > }
+ *   70000
+ *   js> var a = lines1.join(""), b = lines2.join("")
+ *   js> var diffs = dmp.diff_mainList(a, b, true)
+ *   js> function edits(diffs) {
+ *     >   // as upstream, line mode can leave empty deletions behind.
+ *     >   var r = [];
+ *     >   for (var i = 0; i < diffs.size(); i++)
+ *     >     if (diffs.operation(i) != diff_match_patch.Operation.EQUAL &&
+ *     >         diffs.text(i).length() > 0)
+ *     >       r.push(diffs.operation(i) + ":" + diffs.text(i));
+ *     >   return r.join(" ");
+ *     > }
+ *   js> edits(diffs)
+ *   INSERT: changed INSERT: changed INSERT: changed INSERT: changed INSERT: changed INSERT: changed INSERT: changed
+ *   js> var list = diffs.toLinkedList()
+ *   js> dmp.diff_text1(list) == a && dmp.diff_text2(list) == b
+ *   true
  */
 public class diff_match_patch {
 
@@ -103,6 +282,249 @@ public class diff_match_patch {
   }
 
 
+  /**
+   * Number of diagonals diff_bisect() walks between checks of its deadline.
+   */
+  private static final int BISECT_CHECK_INTERVAL = 4096;
+
+  /**
+   * Internal class holding the V arrays of diff_bisect(), one per thread,
+   * so that they are allocated once and grown on demand rather than
+   * allocated and filled on every call.  Arrays longer than
+   * MAX_RETAINED_LENGTH are allocated for a single call instead, so that
+   * one huge diff doesn't leave every thread that ran it holding on to
+   * its memory.
+   */
+  private static class BisectWorkspace {
+    /**
+     * The longest arrays kept by a thread between calls (256KB each).
+     */
+    private static final int MAX_RETAINED_LENGTH = 1 << 16;
+    private static final ThreadLocal<BisectWorkspace> WORKSPACE =
+        new ThreadLocal<BisectWorkspace>() {
+          protected BisectWorkspace initialValue() {
+            return new BisectWorkspace(64);
+          }
+        };
+    private int[] v1;
+    private int[] v2;
+
+    private BisectWorkspace(int length) {
+      v1 = new int[length];
+      v2 = new int[length];
+    }
+
+    /**
+     * @param length The number of entries needed in each array.
+     * @return This thread's workspace, with room for length entries, or
+     *     a new workspace if that is more than a thread keeps.
+     */
+    private static BisectWorkspace get(int length) {
+      if (length > MAX_RETAINED_LENGTH) {
+        return new BisectWorkspace(length);
+      }
+      BisectWorkspace workspace = WORKSPACE.get();
+      if (workspace.v1.length < length) {
+        int n = Math.min(Math.max(length, 2 * workspace.v1.length),
+                         MAX_RETAINED_LENGTH);
+        workspace.v1 = new int[n];
+        workspace.v2 = new int[n];
+      }
+      return workspace;
+    }
+  }
+
+
+  /**
+   * Characters which stand for lines in diff_lineMode(): one for all the
+   * lines found only in text1, one for all those only in text2, and the
+   * first of those standing for a line common to both.
+   */
+  private static final char LINE_ONLY_IN_TEXT1 = 1;
+  private static final char LINE_ONLY_IN_TEXT2 = 2;
+  private static final int FIRST_COMMON_LINE = 3;
+
+  /**
+   * Internal class numbering the distinct lines of some texts without
+   * copying them.  It is an open-addressing hash table keyed on the span of
+   * the first occurrence of each line, and each line's hash is computed
+   * once, while the text is split.
+   */
+  private static class LineTable {
+    // Where each distinct line first occurs, and its hash, by id.
+    private String[] lineText = new String[16];
+    private int[] lineStart = new int[16];
+    private int[] lineEnd = new int[16];
+    private int[] lineHash = new int[16];
+    private int size = 0;
+    // Open-addressed slots, holding the id of a line plus one, or zero.
+    private int[] slots = new int[64];
+
+    /**
+     * Internal class holding the lines of a slice of text, in order.
+     */
+    private static class Lines {
+      private final String text;
+      // The id of each line.
+      private final int[] ids;
+      // The start of each line, followed by the end of the last one.
+      private final int[] bounds;
+      private final int count;
+
+      private Lines(String text, int count) {
+        this.text = text;
+        this.ids = new int[count];
+        this.bounds = new int[count + 1];
+        this.count = count;
+      }
+
+      /**
+       * @param offset Added to each line id.
+       * @return The lines encoded as one character each.
+       */
+      private String toChars(int offset) {
+        char[] chars = new char[count];
+        for (int k = 0; k < count; k++) {
+          chars[k] = (char) (ids[k] + offset);
+        }
+        return new String(chars);
+      }
+
+      /**
+       * @param code The character standing for each line id, or zero or
+       *     less for the default.
+       * @param other The character standing for any other line.
+       * @return The lines encoded as one character each.
+       */
+      private String toChars(int[] code, char other) {
+        char[] chars = new char[count];
+        for (int k = 0; k < count; k++) {
+          int c = code[ids[k]];
+          chars[k] = (c > 0) ? (char) c : other;
+        }
+        return new String(chars);
+      }
+
+      /**
+       * @param from Index of the first line.
+       * @param to Index after the last line.
+       * @return The text of the given lines.
+       */
+      private String text(int from, int to) {
+        return text.substring(bounds[from], bounds[to]);
+      }
+    }
+
+    /**
+     * @return The number of distinct lines seen.
+     */
+    private int size() {
+      return size;
+    }
+
+    /**
+     * @param id Id of a line.
+     * @return The text of the line.
+     */
+    private String line(int id) {
+      return lineText[id].substring(lineStart[id], lineEnd[id]);
+    }
+
+    /**
+     * Split a slice of text into lines, each including its newline, and
+     * number them.
+     * @param text String to split.
+     * @param start Start of the slice to split.
+     * @param end End of the slice to split.
+     * @return The lines of the slice.
+     */
+    private Lines split(String text, int start, int end) {
+      int count = 0;
+      for (int i = start; i < end; i++) {
+        if (text.charAt(i) == '\n') {
+          count++;
+        }
+      }
+      if (end > start && text.charAt(end - 1) != '\n') {
+        count++;
+      }
+      Lines lines = new Lines(text, count);
+      int i = start;
+      for (int k = 0; k < count; k++) {
+        int lineStart = i;
+        int hash = 0;
+        while (i < end) {
+          char c = text.charAt(i++);
+          hash = 31 * hash + c;
+          if (c == '\n') {
+            break;
+          }
+        }
+        lines.bounds[k] = lineStart;
+        lines.ids[k] = id(text, lineStart, i, hash);
+      }
+      lines.bounds[count] = end;
+      return lines;
+    }
+
+    /**
+     * Find the id of a line, numbering it if it hasn't been seen before.
+     * @param text String containing the line.
+     * @param start Start of the line.
+     * @param end End of the line.
+     * @param hash Hash of the line.
+     * @return The id of the line.
+     */
+    private int id(String text, int start, int end, int hash) {
+      int length = end - start;
+      int mask = slots.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      while (slots[slot] != 0) {
+        int id = slots[slot] - 1;
+        if (lineHash[id] == hash && lineEnd[id] - lineStart[id] == length
+            && text.regionMatches(start, lineText[id], lineStart[id],
+                                  length)) {
+          return id;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (size == lineText.length) {
+        int capacity = 2 * size;
+        lineText = Arrays.copyOf(lineText, capacity);
+        lineStart = Arrays.copyOf(lineStart, capacity);
+        lineEnd = Arrays.copyOf(lineEnd, capacity);
+        lineHash = Arrays.copyOf(lineHash, capacity);
+      }
+      int id = size++;
+      lineText[id] = text;
+      lineStart[id] = start;
+      lineEnd[id] = end;
+      lineHash[id] = hash;
+      slots[slot] = id + 1;
+      if (2 * size > slots.length) {
+        rehash();
+      }
+      return id;
+    }
+
+    /**
+     * Double the number of slots, keeping the load factor at most a half.
+     */
+    private void rehash() {
+      slots = new int[2 * slots.length];
+      int mask = slots.length - 1;
+      for (int id = 0; id < size; id++) {
+        int hash = lineHash[id];
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = id + 1;
+      }
+    }
+  }
+
+
   //  DIFF FUNCTIONS
 
 
@@ -140,6 +562,25 @@ public class diff_match_patch {
    */
   public LinkedList<Diff> diff_main(String text1, String text2,
                                     boolean checklines) {
+    return diff_mainList(text1, text2, checklines).toLinkedList();
+  }
+
+  /**
+   * Find the differences between two texts, as a compact DiffList.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param checklines Speedup flag.  If false, then don't run a
+   *     line-level diff first to identify the changed areas.
+   *     If true, then run a faster slightly less optimal diff.
+   * @return DiffList of the differences.
+   */
+  public DiffList diff_mainList(String text1, String text2,
+                                boolean checklines) {
+    // Check for null inputs.
+    if (text1 == null || text2 == null) {
+      throw new IllegalArgumentException("Null inputs. (diff_main)");
+    }
+
     // Set a deadline by which time the diff must be complete.
     long deadline;
     if (Diff_Timeout <= 0) {
@@ -147,59 +588,67 @@ public class diff_match_patch {
     } else {
       deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
     }
-    return diff_main(text1, text2, checklines, deadline);
+    return diff_main(text1, 0, text1.length(), text2, 0, text2.length(),
+                     checklines, deadline);
   }
 
+  /*
+   * Internally, the diff works on slices of the texts it is given, each
+   * passed as the text with the start and end of the slice, so that
+   * trimming and splitting them doesn't copy any characters.  Text is only
+   * copied out of a slice when it is added to the resulting DiffList.
+   */
+
   /**
    * Find the differences between two texts.  Simplifies the problem by
    * stripping any common prefix or suffix off the texts before diffing.
    * @param text1 Old string to be diffed.
+   * @param start1 Start of the slice of text1 to diff.
+   * @param end1 End of the slice of text1 to diff.
    * @param text2 New string to be diffed.
+   * @param start2 Start of the slice of text2 to diff.
+   * @param end2 End of the slice of text2 to diff.
    * @param checklines Speedup flag.  If false, then don't run a
    *     line-level diff first to identify the changed areas.
    *     If true, then run a faster slightly less optimal diff.
    * @param deadline Time when the diff should be complete by.  Used
    *     internally for recursive calls.  Users should set DiffTimeout instead.
-   * @return Linked List of Diff objects.
+   * @return DiffList of the differences.
    */
-  private LinkedList<Diff> diff_main(String text1, String text2,
-                                     boolean checklines, long deadline) {
-    // Check for null inputs.
-    if (text1 == null || text2 == null) {
-      throw new IllegalArgumentException("Null inputs. (diff_main)");
-    }
-
+  private DiffList diff_main(String text1, int start1, int end1,
+                             String text2, int start2, int end2,
+                             boolean checklines, long deadline) {
     // Check for equality (speedup).
-    LinkedList<Diff> diffs;
-    if (text1.equals(text2)) {
-      diffs = new LinkedList<Diff>();
-      if (text1.length() != 0) {
-        diffs.add(new Diff(Operation.EQUAL, text1));
+    DiffList diffs = new DiffList();
+    if (end1 - start1 == end2 - start2
+        && text1.regionMatches(start1, text2, start2, end1 - start1)) {
+      if (end1 != start1) {
+        diffs.add(Operation.EQUAL, text1.substring(start1, end1));
       }
       return diffs;
     }
 
     // Trim off common prefix (speedup).
-    int commonlength = diff_commonPrefix(text1, text2);
-    String commonprefix = text1.substring(0, commonlength);
-    text1 = text1.substring(commonlength);
-    text2 = text2.substring(commonlength);
+    int commonlength = commonPrefix(text1, start1, end1, text2, start2, end2);
+    if (commonlength != 0) {
+      diffs.add(Operation.EQUAL,
+                text1.substring(start1, start1 + commonlength));
+    }
+    start1 += commonlength;
+    start2 += commonlength;
 
     // Trim off common suffix (speedup).
-    commonlength = diff_commonSuffix(text1, text2);
-    String commonsuffix = text1.substring(text1.length() - commonlength);
-    text1 = text1.substring(0, text1.length() - commonlength);
-    text2 = text2.substring(0, text2.length() - commonlength);
+    commonlength = commonSuffix(text1, start1, end1, text2, start2, end2);
+    end1 -= commonlength;
+    end2 -= commonlength;
 
     // Compute the diff on the middle block.
-    diffs = diff_compute(text1, text2, checklines, deadline);
+    diffs.addAll(diff_compute(text1, start1, end1, text2, start2, end2,
+                              checklines, deadline));
 
-    // Restore the prefix and suffix.
-    if (commonprefix.length() != 0) {
-      diffs.addFirst(new Diff(Operation.EQUAL, commonprefix));
-    }
-    if (commonsuffix.length() != 0) {
-      diffs.addLast(new Diff(Operation.EQUAL, commonsuffix));
+    // Restore the suffix.
+    if (commonlength != 0) {
+      diffs.add(Operation.EQUAL, text1.substring(end1, end1 + commonlength));
     }
 
     diff_cleanupMerge(diffs);
@@ -210,76 +659,86 @@ public class diff_match_patch {
    * Find the differences between two texts.  Assumes that the texts do not
    * have any common prefix or suffix.
    * @param text1 Old string to be diffed.
+   * @param start1 Start of the slice of text1 to diff.
+   * @param end1 End of the slice of text1 to diff.
    * @param text2 New string to be diffed.
+   * @param start2 Start of the slice of text2 to diff.
+   * @param end2 End of the slice of text2 to diff.
    * @param checklines Speedup flag.  If false, then don't run a
    *     line-level diff first to identify the changed areas.
    *     If true, then run a faster slightly less optimal diff.
    * @param deadline Time when the diff should be complete by.
-   * @return Linked List of Diff objects.
+   * @return DiffList of the differences.
    */
-  private LinkedList<Diff> diff_compute(String text1, String text2,
-                                        boolean checklines, long deadline) {
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-
-    if (text1.length() == 0) {
+  private DiffList diff_compute(String text1, int start1, int end1,
+                                String text2, int start2, int end2,
+                                boolean checklines, long deadline) {
+    DiffList diffs = new DiffList();
+    int length1 = end1 - start1;
+    int length2 = end2 - start2;
+
+    if (length1 == 0) {
       // Just add some text (speedup).
-      diffs.add(new Diff(Operation.INSERT, text2));
+      diffs.add(Operation.INSERT, text2.substring(start2, end2));
       return diffs;
     }
 
-    if (text2.length() == 0) {
+    if (length2 == 0) {
       // Just delete some text (speedup).
-      diffs.add(new Diff(Operation.DELETE, text1));
+      diffs.add(Operation.DELETE, text1.substring(start1, end1));
       return diffs;
     }
 
-    String longtext = text1.length() > text2.length() ? text1 : text2;
-    String shorttext = text1.length() > text2.length() ? text2 : text1;
-    int i = longtext.indexOf(shorttext);
+    boolean longer1 = length1 > length2;
+    String longtext = longer1 ? text1 : text2;
+    int longstart = longer1 ? start1 : start2;
+    int longend = longer1 ? end1 : end2;
+    String shorttext = longer1 ? text2 : text1;
+    int shortstart = longer1 ? start2 : start1;
+    int shortend = longer1 ? end2 : end1;
+    int i = indexOf(longtext, longstart, longend,
+                    shorttext, shortstart, shortend);
     if (i != -1) {
       // Shorter text is inside the longer text (speedup).
-      Operation op = (text1.length() > text2.length()) ?
-                     Operation.DELETE : Operation.INSERT;
-      diffs.add(new Diff(op, longtext.substring(0, i)));
-      diffs.add(new Diff(Operation.EQUAL, shorttext));
-      diffs.add(new Diff(op, longtext.substring(i + shorttext.length())));
+      Operation op = longer1 ? Operation.DELETE : Operation.INSERT;
+      diffs.add(op, longtext.substring(longstart, i));
+      diffs.add(Operation.EQUAL, shorttext.substring(shortstart, shortend));
+      diffs.add(op, longtext.substring(i + shortend - shortstart, longend));
       return diffs;
     }
 
-    if (shorttext.length() == 1) {
+    if (shortend - shortstart == 1) {
       // Single character string.
       // After the previous speedup, the character can't be an equality.
-      diffs.add(new Diff(Operation.DELETE, text1));
-      diffs.add(new Diff(Operation.INSERT, text2));
+      diffs.add(Operation.DELETE, text1.substring(start1, end1));
+      diffs.add(Operation.INSERT, text2.substring(start2, end2));
       return diffs;
     }
 
     // Check to see if the problem can be split in two.
-    String[] hm = diff_halfMatch(text1, text2);
+    int[] hm = diff_halfMatch(text1, start1, end1, text2, start2, end2);
     if (hm != null) {
-      // A half-match was found, sort out the return data.
-      String text1_a = hm[0];
-      String text1_b = hm[1];
-      String text2_a = hm[2];
-      String text2_b = hm[3];
-      String mid_common = hm[4];
+      // A half-match was found: text1 is split at hm[0] and hm[1], and
+      // text2 at hm[2] and hm[3], around the common middle.
       // Send both pairs off for separate processing.
-      LinkedList<Diff> diffs_a = diff_main(text1_a, text2_a,
-                                           checklines, deadline);
-      LinkedList<Diff> diffs_b = diff_main(text1_b, text2_b,
-                                           checklines, deadline);
+      DiffList diffs_a = diff_main(text1, start1, hm[0], text2, start2, hm[2],
+                                   checklines, deadline);
+      DiffList diffs_b = diff_main(text1, hm[1], end1, text2, hm[3], end2,
+                                   checklines, deadline);
       // Merge the results.
       diffs = diffs_a;
-      diffs.add(new Diff(Operation.EQUAL, mid_common));
+      diffs.add(Operation.EQUAL, text1.substring(hm[0], hm[1]));
       diffs.addAll(diffs_b);
       return diffs;
     }
 
-    if (checklines && text1.length() > 100 && text2.length() > 100) {
-      return diff_lineMode(text1, text2, deadline);
+    if (checklines && length1 > 100 && length2 > 100) {
+      return diff_lineMode(text1, start1, end1, text2, start2, end2,
+                           deadline);
     }
 
-    return diff_bisect(text1, text2, deadline);
+    return diff_bisectList(text1, start1, end1, text2, start2, end2,
+                           deadline);
   }
 
   /**
@@ -287,69 +746,115 @@ public class diff_match_patch {
    * greater accuracy.
    * This speedup can produce non-minimal diffs.
    * @param text1 Old string to be diffed.
+   * @param start1 Start of the slice of text1 to diff.
+   * @param end1 End of the slice of text1 to diff.
    * @param text2 New string to be diffed.
+   * @param start2 Start of the slice of text2 to diff.
+   * @param end2 End of the slice of text2 to diff.
    * @param deadline Time when the diff should be complete by.
-   * @return Linked List of Diff objects.
+   * @return DiffList of the differences.
    */
-  private LinkedList<Diff> diff_lineMode(String text1, String text2,
-                                         long deadline) {
-    // Scan the text on a line-by-line basis first.
-    LinesToCharsResult b = diff_linesToChars(text1, text2);
-    text1 = b.chars1;
-    text2 = b.chars2;
-    List<String> linearray = b.lineArray;
+  private DiffList diff_lineMode(String text1, int start1, int end1,
+                                 String text2, int start2, int end2,
+                                 long deadline) {
+    // Scan the text on a line-by-line basis first, numbering the lines.
+    LineTable table = new LineTable();
+    LineTable.Lines lines1 = table.split(text1, start1, end1);
+    LineTable.Lines lines2 = table.split(text2, start2, end2);
+
+    // Encode each line as a character.  Only a line found in both texts can
+    // be part of an equality, so each of those gets a character of its own,
+    // while the lines found only in text1 share one character, and those
+    // found only in text2 another.  That leaves room for 65533 distinct
+    // common lines; any more are encoded as if they were in one text only,
+    // and are matched when the replacement blocks are rediffed below.
+    int[] code = new int[table.size()];
+    for (int k = 0; k < lines1.count; k++) {
+      code[lines1.ids[k]] = -1;
+    }
+    int next = FIRST_COMMON_LINE;
+    for (int k = 0; k < lines2.count; k++) {
+      int id = lines2.ids[k];
+      if (code[id] == -1 && next <= Character.MAX_VALUE) {
+        code[id] = next++;
+      }
+    }
+    String chars1 = lines1.toChars(code, LINE_ONLY_IN_TEXT1);
+    String chars2 = lines2.toChars(code, LINE_ONLY_IN_TEXT2);
 
-    LinkedList<Diff> diffs = diff_main(text1, text2, false, deadline);
+    DiffList diffs = diff_main(chars1, 0, chars1.length(),
+                               chars2, 0, chars2.length(), false, deadline);
 
-    // Convert the diff back to original text.
-    diff_charsToLines(diffs, linearray);
+    // Convert the diff back to original text, by position, since a character
+    // may stand for more than one line.
+    int line1 = 0;
+    int line2 = 0;
+    for (int i = 0; i < diffs.size(); i++) {
+      int count = diffs.text(i).length();
+      switch (diffs.operation(i)) {
+      case DELETE:
+        diffs.setText(i, lines1.text(line1, line1 + count));
+        line1 += count;
+        break;
+      case INSERT:
+        diffs.setText(i, lines2.text(line2, line2 + count));
+        line2 += count;
+        break;
+      case EQUAL:
+        diffs.setText(i, lines1.text(line1, line1 + count));
+        line1 += count;
+        line2 += count;
+        break;
+      }
+    }
     // Eliminate freak matches (e.g. blank lines)
     diff_cleanupSemantic(diffs);
 
-    // Rediff any replacement blocks, this time character-by-character.
-    // Add a dummy entry at the end.
-    diffs.add(new Diff(Operation.EQUAL, ""));
+    // Rediff any replacement blocks, this time character-by-character,
+    // copying everything else across.
+    DiffList result = new DiffList(diffs.size());
     int count_delete = 0;
     int count_insert = 0;
-    String text_delete = "";
-    String text_insert = "";
-    ListIterator<Diff> pointer = diffs.listIterator();
-    Diff thisDiff = pointer.next();
-    while (thisDiff != null) {
-      switch (thisDiff.operation) {
+    StringBuilder text_delete = new StringBuilder();
+    StringBuilder text_insert = new StringBuilder();
+    // Pretend there is a dummy equality after the last diff.
+    for (int pointer = 0; pointer <= diffs.size(); pointer++) {
+      Operation op = (pointer < diffs.size()) ?
+                     diffs.operation(pointer) : Operation.EQUAL;
+      switch (op) {
       case INSERT:
         count_insert++;
-        text_insert += thisDiff.text;
+        text_insert.append(diffs.text(pointer));
         break;
       case DELETE:
         count_delete++;
-        text_delete += thisDiff.text;
+        text_delete.append(diffs.text(pointer));
         break;
       case EQUAL:
         // Upon reaching an equality, check for prior redundancies.
         if (count_delete >= 1 && count_insert >= 1) {
-          // Delete the offending records and add the merged ones.
-          pointer.previous();
-          for (int j = 0; j < count_delete + count_insert; j++) {
-            pointer.previous();
-            pointer.remove();
-          }
-          for (Diff newDiff : diff_main(text_delete, text_insert, false,
-              deadline)) {
-            pointer.add(newDiff);
+          result.addAll(diff_main(text_delete.toString(), 0,
+                                  text_delete.length(),
+                                  text_insert.toString(), 0,
+                                  text_insert.length(), false, deadline));
+        } else {
+          for (int j = pointer - count_delete - count_insert;
+               j < pointer; j++) {
+            result.add(diffs.operation(j), diffs.text(j));
           }
         }
+        if (pointer < diffs.size()) {
+          result.add(Operation.EQUAL, diffs.text(pointer));
+        }
         count_insert = 0;
         count_delete = 0;
-        text_delete = "";
-        text_insert = "";
+        text_delete.setLength(0);
+        text_insert.setLength(0);
         break;
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
     }
-    diffs.removeLast();  // Remove the dummy entry at the end.
 
-    return diffs;
+    return result;
   }
 
   /**
@@ -363,18 +868,43 @@ public class diff_match_patch {
    */
   protected LinkedList<Diff> diff_bisect(String text1, String text2,
       long deadline) {
+    return diff_bisectList(text1, 0, text1.length(), text2, 0, text2.length(),
+                           deadline).toLinkedList();
+  }
+
+  /**
+   * Find the 'middle snake' of a diff, split the problem in two
+   * and return the recursively constructed diff.
+   * @param text1 Old string to be diffed.
+   * @param start1 Start of the slice of text1 to diff.
+   * @param end1 End of the slice of text1 to diff.
+   * @param text2 New string to be diffed.
+   * @param start2 Start of the slice of text2 to diff.
+   * @param end2 End of the slice of text2 to diff.
+   * @param deadline Time at which to bail if not yet complete.
+   * @return DiffList of the differences.
+   */
+  private DiffList diff_bisectList(String text1, int start1, int end1,
+                                   String text2, int start2, int end2,
+                                   long deadline) {
     // Cache the text lengths to prevent multiple calls.
-    int text1_length = text1.length();
-    int text2_length = text2.length();
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
     int max_d = (text1_length + text2_length + 1) / 2;
     int v_offset = max_d;
     int v_length = 2 * max_d;
-    int[] v1 = new int[v_length];
-    int[] v2 = new int[v_length];
-    for (int x = 0; x < v_length; x++) {
+    // The V arrays are reused from call to call.  Only the entries within
+    // 'reached' of v_offset have been reset; the rest are stale, and are
+    // treated as -1.  The recursive calls made once the paths overlap reuse
+    // them as well, which is safe since this call is finished with them.
+    BisectWorkspace workspace = BisectWorkspace.get(v_length + 1);
+    int[] v1 = workspace.v1;
+    int[] v2 = workspace.v2;
+    for (int x = v_offset - 1; x <= v_offset + 1; x++) {
       v1[x] = -1;
       v2[x] = -1;
     }
+    int reached = 1;
     v1[v_offset + 1] = 0;
     v2[v_offset + 1] = 0;
     int delta = text1_length - text2_length;
@@ -387,10 +917,23 @@ public class diff_match_patch {
     int k1end = 0;
     int k2start = 0;
     int k2end = 0;
+    // The clock is only read every BISECT_CHECK_INTERVAL diagonals.
+    int unchecked = BISECT_CHECK_INTERVAL;
     for (int d = 0; d < max_d; d++) {
       // Bail out if deadline is reached.
-      if (System.currentTimeMillis() > deadline) {
-        break;
+      if (unchecked >= BISECT_CHECK_INTERVAL) {
+        if (deadline != Long.MAX_VALUE
+            && System.currentTimeMillis() > deadline) {
+          break;
+        }
+        unchecked = 0;
+      }
+      unchecked += 2 * (d + 1);
+      if (d > 0) {
+        // Reset the entries the paths can reach in this step.
+        v1[v_offset - d - 1] = v1[v_offset + d + 1] = -1;
+        v2[v_offset - d - 1] = v2[v_offset + d + 1] = -1;
+        reached = d + 1;
       }
 
       // Walk the front path one step.
@@ -404,7 +947,7 @@ public class diff_match_patch {
         }
         int y1 = x1 - k1;
         while (x1 < text1_length && y1 < text2_length
-               && text1.charAt(x1) == text2.charAt(y1)) {
+               && text1.charAt(start1 + x1) == text2.charAt(start2 + y1)) {
           x1++;
           y1++;
         }
@@ -417,12 +960,15 @@ public class diff_match_patch {
           k1start += 2;
         } else if (front) {
           int k2_offset = v_offset + delta - k1;
-          if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+          if (k2_offset >= 0 && k2_offset < v_length
+              && Math.abs(k2_offset - v_offset) <= reached
+              && v2[k2_offset] != -1) {
             // Mirror x2 onto top-left coordinate system.
             int x2 = text1_length - v2[k2_offset];
             if (x1 >= x2) {
               // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              return diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                                      x1, y1, deadline);
             }
           }
         }
@@ -439,8 +985,7 @@ public class diff_match_patch {
         }
         int y2 = x2 - k2;
         while (x2 < text1_length && y2 < text2_length
-               && text1.charAt(text1_length - x2 - 1)
-               == text2.charAt(text2_length - y2 - 1)) {
+               && text1.charAt(end1 - x2 - 1) == text2.charAt(end2 - y2 - 1)) {
           x2++;
           y2++;
         }
@@ -453,14 +998,17 @@ public class diff_match_patch {
           k2start += 2;
         } else if (!front) {
           int k1_offset = v_offset + delta - k2;
-          if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+          if (k1_offset >= 0 && k1_offset < v_length
+              && Math.abs(k1_offset - v_offset) <= reached
+              && v1[k1_offset] != -1) {
             int x1 = v1[k1_offset];
             int y1 = v_offset + x1 - k1_offset;
             // Mirror x2 onto top-left coordinate system.
             x2 = text1_length - x2;
             if (x1 >= x2) {
               // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              return diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                                      x1, y1, deadline);
             }
           }
         }
@@ -468,9 +1016,9 @@ public class diff_match_patch {
     }
     // Diff took too long and hit the deadline or
     // number of diffs equals number of characters, no commonality at all.
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-    diffs.add(new Diff(Operation.DELETE, text1));
-    diffs.add(new Diff(Operation.INSERT, text2));
+    DiffList diffs = new DiffList();
+    diffs.add(Operation.DELETE, text1.substring(start1, end1));
+    diffs.add(Operation.INSERT, text2.substring(start2, end2));
     return diffs;
   }
 
@@ -478,22 +1026,24 @@ public class diff_match_patch {
    * Given the location of the 'middle snake', split the diff in two parts
    * and recurse.
    * @param text1 Old string to be diffed.
+   * @param start1 Start of the slice of text1 to diff.
+   * @param end1 End of the slice of text1 to diff.
    * @param text2 New string to be diffed.
-   * @param x Index of split point in text1.
-   * @param y Index of split point in text2.
+   * @param start2 Start of the slice of text2 to diff.
+   * @param end2 End of the slice of text2 to diff.
+   * @param x Index of split point in the slice of text1.
+   * @param y Index of split point in the slice of text2.
    * @param deadline Time at which to bail if not yet complete.
-   * @return LinkedList of Diff objects.
+   * @return DiffList of the differences.
    */
-  private LinkedList<Diff> diff_bisectSplit(String text1, String text2,
-                                            int x, int y, long deadline) {
-    String text1a = text1.substring(0, x);
-    String text2a = text2.substring(0, y);
-    String text1b = text1.substring(x);
-    String text2b = text2.substring(y);
-
+  private DiffList diff_bisectSplit(String text1, int start1, int end1,
+                                    String text2, int start2, int end2,
+                                    int x, int y, long deadline) {
     // Compute both diffs serially.
-    LinkedList<Diff> diffs = diff_main(text1a, text2a, false, deadline);
-    LinkedList<Diff> diffsb = diff_main(text1b, text2b, false, deadline);
+    DiffList diffs = diff_main(text1, start1, start1 + x,
+                               text2, start2, start2 + y, false, deadline);
+    DiffList diffsb = diff_main(text1, start1 + x, end1,
+                                text2, start2 + y, end2, false, deadline);
 
     diffs.addAll(diffsb);
     return diffs;
@@ -509,54 +1059,17 @@ public class diff_match_patch {
    *     unique strings is intentionally blank.
    */
   protected LinesToCharsResult diff_linesToChars(String text1, String text2) {
-    List<String> lineArray = new ArrayList<String>();
-    Map<String, Integer> lineHash = new HashMap<String, Integer>();
-    // e.g. linearray[4] == "Hello\n"
-    // e.g. linehash.get("Hello\n") == 4
-
+    LineTable table = new LineTable();
     // "\x00" is a valid character, but various debuggers don't like it.
-    // So we'll insert a junk entry to avoid generating a null character.
+    // So line ids are offset by one, and the zeroth line is blank.
+    String chars1 = table.split(text1, 0, text1.length()).toChars(1);
+    String chars2 = table.split(text2, 0, text2.length()).toChars(1);
+    List<String> lineArray = new ArrayList<String>(table.size() + 1);
     lineArray.add("");
-
-    String chars1 = diff_linesToCharsMunge(text1, lineArray, lineHash);
-    String chars2 = diff_linesToCharsMunge(text2, lineArray, lineHash);
-    return new LinesToCharsResult(chars1, chars2, lineArray);
-  }
-
-  /**
-   * Split a text into a list of strings.  Reduce the texts to a string of
-   * hashes where each Unicode character represents one line.
-   * @param text String to encode.
-   * @param lineArray List of unique strings.
-   * @param lineHash Map of strings to indices.
-   * @return Encoded string.
-   */
-  private String diff_linesToCharsMunge(String text, List<String> lineArray,
-                                        Map<String, Integer> lineHash) {
-    int lineStart = 0;
-    int lineEnd = -1;
-    String line;
-    StringBuilder chars = new StringBuilder();
-    // Walk the text, pulling out a substring for each line.
-    // text.split('\n') would would temporarily double our memory footprint.
-    // Modifying text would create many large strings to garbage collect.
-    while (lineEnd < text.length() - 1) {
-      lineEnd = text.indexOf('\n', lineStart);
-      if (lineEnd == -1) {
-        lineEnd = text.length() - 1;
-      }
-      line = text.substring(lineStart, lineEnd + 1);
-      lineStart = lineEnd + 1;
-
-      if (lineHash.containsKey(line)) {
-        chars.append(String.valueOf((char) (int) lineHash.get(line)));
-      } else {
-        lineArray.add(line);
-        lineHash.put(line, lineArray.size() - 1);
-        chars.append(String.valueOf((char) (lineArray.size() - 1)));
-      }
+    for (int id = 0; id < table.size(); id++) {
+      lineArray.add(table.line(id));
     }
-    return chars.toString();
+    return new LinesToCharsResult(chars1, chars2, lineArray);
   }
 
   /**
@@ -584,10 +1097,25 @@ public class diff_match_patch {
    * @return The number of characters common to the start of each string.
    */
   public int diff_commonPrefix(String text1, String text2) {
+    return commonPrefix(text1, 0, text1.length(), text2, 0, text2.length());
+  }
+
+  /**
+   * Determine the common prefix of two slices of text.
+   * @param text1 First string.
+   * @param start1 Start of the slice of text1.
+   * @param end1 End of the slice of text1.
+   * @param text2 Second string.
+   * @param start2 Start of the slice of text2.
+   * @param end2 End of the slice of text2.
+   * @return The number of characters common to the start of each slice.
+   */
+  private static int commonPrefix(String text1, int start1, int end1,
+                                  String text2, int start2, int end2) {
     // Performance analysis: http://neil.fraser.name/news/2007/10/09/
-    int n = Math.min(text1.length(), text2.length());
+    int n = Math.min(end1 - start1, end2 - start2);
     for (int i = 0; i < n; i++) {
-      if (text1.charAt(i) != text2.charAt(i)) {
+      if (text1.charAt(start1 + i) != text2.charAt(start2 + i)) {
         return i;
       }
     }
@@ -601,18 +1129,58 @@ public class diff_match_patch {
    * @return The number of characters common to the end of each string.
    */
   public int diff_commonSuffix(String text1, String text2) {
+    return commonSuffix(text1, 0, text1.length(), text2, 0, text2.length());
+  }
+
+  /**
+   * Determine the common suffix of two slices of text.
+   * @param text1 First string.
+   * @param start1 Start of the slice of text1.
+   * @param end1 End of the slice of text1.
+   * @param text2 Second string.
+   * @param start2 Start of the slice of text2.
+   * @param end2 End of the slice of text2.
+   * @return The number of characters common to the end of each slice.
+   */
+  private static int commonSuffix(String text1, int start1, int end1,
+                                  String text2, int start2, int end2) {
     // Performance analysis: http://neil.fraser.name/news/2007/10/09/
-    int text1_length = text1.length();
-    int text2_length = text2.length();
-    int n = Math.min(text1_length, text2_length);
+    int n = Math.min(end1 - start1, end2 - start2);
     for (int i = 1; i <= n; i++) {
-      if (text1.charAt(text1_length - i) != text2.charAt(text2_length - i)) {
+      if (text1.charAt(end1 - i) != text2.charAt(end2 - i)) {
         return i - 1;
       }
     }
     return n;
   }
 
+  /**
+   * Find the first occurrence of one slice of text within another.
+   * @param text1 String to search.
+   * @param start1 Start of the slice of text1 to search.
+   * @param end1 End of the slice of text1 to search.
+   * @param text2 String to look for.
+   * @param start2 Start of the slice of text2 to look for.
+   * @param end2 End of the slice of text2 to look for.
+   * @return The index in text1 at which the slice of text2 first occurs,
+   *     or -1 if it doesn't.
+   */
+  private static int indexOf(String text1, int start1, int end1,
+                             String text2, int start2, int end2) {
+    int length = end2 - start2;
+    if (length == 0) {
+      return start1;
+    }
+    char first = text2.charAt(start2);
+    for (int i = start1, last = end1 - length; i <= last; i++) {
+      if (text1.charAt(i) == first
+          && text1.regionMatches(i + 1, text2, start2 + 1, length - 1)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Determine if the suffix of one string is the prefix of another.
    * @param text1 First string.
@@ -628,15 +1196,12 @@ public class diff_match_patch {
     if (text1_length == 0 || text2_length == 0) {
       return 0;
     }
-    // Truncate the longer string.
-    if (text1_length > text2_length) {
-      text1 = text1.substring(text1_length - text2_length);
-    } else if (text1_length < text2_length) {
-      text2 = text2.substring(0, text1_length);
-    }
+    // Truncate the longer string; only the end of text1 and the start of
+    // text2 are compared.
     int text_length = Math.min(text1_length, text2_length);
     // Quick check for the worst case.
-    if (text1.equals(text2)) {
+    if (text1.regionMatches(text1_length - text_length, text2, 0,
+                            text_length)) {
       return text_length;
     }
 
@@ -646,14 +1211,14 @@ public class diff_match_patch {
     int best = 0;
     int length = 1;
     while (true) {
-      String pattern = text1.substring(text_length - length);
-      int found = text2.indexOf(pattern);
+      int found = indexOf(text2, 0, text_length,
+                          text1, text1_length - length, text1_length);
       if (found == -1) {
         return best;
       }
       length += found;
-      if (found == 0 || text1.substring(text_length - length).equals(
-          text2.substring(0, length))) {
+      if (found == 0 || text1.regionMatches(text1_length - length, text2, 0,
+                                            length)) {
         best = length;
         length++;
       }
@@ -671,23 +1236,57 @@ public class diff_match_patch {
    *     common middle.  Or null if there was no match.
    */
   protected String[] diff_halfMatch(String text1, String text2) {
+    int[] hm = diff_halfMatch(text1, 0, text1.length(),
+                              text2, 0, text2.length());
+    if (hm == null) {
+      return null;
+    }
+    return new String[]{text1.substring(0, hm[0]), text1.substring(hm[1]),
+                        text2.substring(0, hm[2]), text2.substring(hm[3]),
+                        text1.substring(hm[0], hm[1])};
+  }
+
+  /**
+   * Do two slices of text share a substring which is at least half the
+   * length of the longer slice?
+   * This speedup can produce non-minimal diffs.
+   * @param text1 First string.
+   * @param start1 Start of the slice of text1.
+   * @param end1 End of the slice of text1.
+   * @param text2 Second string.
+   * @param start2 Start of the slice of text2.
+   * @param end2 End of the slice of text2.
+   * @return Four element int array, containing the start and end of the
+   *     common middle in text1, then its start and end in text2.  Or null if
+   *     there was no match.
+   */
+  private int[] diff_halfMatch(String text1, int start1, int end1,
+                               String text2, int start2, int end2) {
     if (Diff_Timeout <= 0) {
       // Don't risk returning a non-optimal diff if we have unlimited time.
       return null;
     }
-    String longtext = text1.length() > text2.length() ? text1 : text2;
-    String shorttext = text1.length() > text2.length() ? text2 : text1;
-    if (longtext.length() < 4 || shorttext.length() * 2 < longtext.length()) {
+    boolean longer1 = end1 - start1 > end2 - start2;
+    String longtext = longer1 ? text1 : text2;
+    int longstart = longer1 ? start1 : start2;
+    int longend = longer1 ? end1 : end2;
+    String shorttext = longer1 ? text2 : text1;
+    int shortstart = longer1 ? start2 : start1;
+    int shortend = longer1 ? end2 : end1;
+    int longlength = longend - longstart;
+    if (longlength < 4 || (shortend - shortstart) * 2 < longlength) {
       return null;  // Pointless.
     }
 
     // First check if the second quarter is the seed for a half-match.
-    String[] hm1 = diff_halfMatchI(longtext, shorttext,
-                                   (longtext.length() + 3) / 4);
+    int[] hm1 = diff_halfMatchI(longtext, longstart, longend,
+                                shorttext, shortstart, shortend,
+                                longstart + (longlength + 3) / 4);
     // Check again based on the third quarter.
-    String[] hm2 = diff_halfMatchI(longtext, shorttext,
-                                   (longtext.length() + 1) / 2);
-    String[] hm;
+    int[] hm2 = diff_halfMatchI(longtext, longstart, longend,
+                                shorttext, shortstart, shortend,
+                                longstart + (longlength + 1) / 2);
+    int[] hm;
     if (hm1 == null && hm2 == null) {
       return null;
     } else if (hm2 == null) {
@@ -696,15 +1295,14 @@ public class diff_match_patch {
       hm = hm2;
     } else {
       // Both matched.  Select the longest.
-      hm = hm1[4].length() > hm2[4].length() ? hm1 : hm2;
+      hm = hm1[1] - hm1[0] > hm2[1] - hm2[0] ? hm1 : hm2;
     }
 
     // A half-match was found, sort out the return data.
-    if (text1.length() > text2.length()) {
+    if (longer1) {
       return hm;
-      //return new String[]{hm[0], hm[1], hm[2], hm[3], hm[4]};
     } else {
-      return new String[]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+      return new int[]{hm[2], hm[3], hm[0], hm[1]};
     }
   }
 
@@ -712,36 +1310,42 @@ public class diff_match_patch {
    * Does a substring of shorttext exist within longtext such that the
    * substring is at least half the length of longtext?
    * @param longtext Longer string.
+   * @param longstart Start of the slice of longtext.
+   * @param longend End of the slice of longtext.
    * @param shorttext Shorter string.
+   * @param shortstart Start of the slice of shorttext.
+   * @param shortend End of the slice of shorttext.
    * @param i Start index of quarter length substring within longtext.
-   * @return Five element String array, containing the prefix of longtext, the
-   *     suffix of longtext, the prefix of shorttext, the suffix of shorttext
-   *     and the common middle.  Or null if there was no match.
+   * @return Four element int array, containing the start and end of the
+   *     common middle in longtext, then its start and end in shorttext.  Or
+   *     null if there was no match.
    */
-  private String[] diff_halfMatchI(String longtext, String shorttext, int i) {
+  private int[] diff_halfMatchI(String longtext, int longstart, int longend,
+                                String shorttext, int shortstart,
+                                int shortend, int i) {
     // Start with a 1/4 length substring at position i as a seed.
-    String seed = longtext.substring(i, i + longtext.length() / 4);
-    int j = -1;
-    String best_common = "";
-    String best_longtext_a = "", best_longtext_b = "";
-    String best_shorttext_a = "", best_shorttext_b = "";
-    while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-      int prefixLength = diff_commonPrefix(longtext.substring(i),
-                                           shorttext.substring(j));
-      int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                                           shorttext.substring(0, j));
-      if (best_common.length() < suffixLength + prefixLength) {
-        best_common = shorttext.substring(j - suffixLength, j)
-            + shorttext.substring(j, j + prefixLength);
-        best_longtext_a = longtext.substring(0, i - suffixLength);
-        best_longtext_b = longtext.substring(i + prefixLength);
-        best_shorttext_a = shorttext.substring(0, j - suffixLength);
-        best_shorttext_b = shorttext.substring(j + prefixLength);
-      }
-    }
-    if (best_common.length() * 2 >= longtext.length()) {
-      return new String[]{best_longtext_a, best_longtext_b,
-                          best_shorttext_a, best_shorttext_b, best_common};
+    int seedend = i + (longend - longstart) / 4;
+    int j = shortstart - 1;
+    int best_common = 0;
+    int best_longstart = 0, best_longend = 0;
+    int best_shortstart = 0, best_shortend = 0;
+    while ((j = indexOf(shorttext, j + 1, shortend,
+                        longtext, i, seedend)) != -1) {
+      int prefixLength = commonPrefix(longtext, i, longend,
+                                      shorttext, j, shortend);
+      int suffixLength = commonSuffix(longtext, longstart, i,
+                                      shorttext, shortstart, j);
+      if (best_common < suffixLength + prefixLength) {
+        best_common = suffixLength + prefixLength;
+        best_longstart = i - suffixLength;
+        best_longend = i + prefixLength;
+        best_shortstart = j - suffixLength;
+        best_shortend = j + prefixLength;
+      }
+    }
+    if (best_common * 2 >= longend - longstart) {
+      return new int[]{best_longstart, best_longend,
+                       best_shortstart, best_shortend};
     } else {
       return null;
     }
@@ -752,88 +1356,105 @@ public class diff_match_patch {
    * @param diffs LinkedList of Diff objects.
    */
   public void diff_cleanupSemantic(LinkedList<Diff> diffs) {
+    DiffList list = new DiffList(diffs);
+    diff_cleanupSemantic(list);
+    list.copyTo(diffs);
+  }
+
+  /**
+   * Reduce the number of edits by eliminating semantically trivial equalities.
+   * @param diffs DiffList of the differences.
+   */
+  public void diff_cleanupSemantic(DiffList diffs) {
     if (diffs.isEmpty()) {
       return;
     }
     boolean changes = false;
-    Stack<Diff> equalities = new Stack<Diff>();  // Stack of qualities.
-    String lastequality = null; // Always equal to equalities.lastElement().text
-    ListIterator<Diff> pointer = diffs.listIterator();
+    // Stack of equalities, by index.  An equality which is split becomes a
+    // deletion, marked in split[], followed by an insertion of the same
+    // text; they are expanded at the end, so the list is never shifted.
+    int[] equalities = new int[16];
+    int top = 0;
+    boolean[] split = new boolean[diffs.size()];
+    String lastequality = null; // Always equal to text(equalities[top - 1])
     // Number of characters that changed prior to the equality.
     int length_insertions1 = 0;
     int length_deletions1 = 0;
     // Number of characters that changed after the equality.
     int length_insertions2 = 0;
     int length_deletions2 = 0;
-    Diff thisDiff = pointer.next();
-    while (thisDiff != null) {
-      if (thisDiff.operation == Operation.EQUAL) {
+    int pointer = 0;
+    while (pointer < diffs.size()) {
+      if (diffs.operation(pointer) == Operation.EQUAL) {
         // Equality found.
-        equalities.push(thisDiff);
+        if (top == equalities.length) {
+          equalities = grow(equalities);
+        }
+        equalities[top++] = pointer;
         length_insertions1 = length_insertions2;
         length_deletions1 = length_deletions2;
         length_insertions2 = 0;
         length_deletions2 = 0;
-        lastequality = thisDiff.text;
-      } else {
-        // An insertion or deletion.
-        if (thisDiff.operation == Operation.INSERT) {
-          length_insertions2 += thisDiff.text.length();
+        lastequality = diffs.text(pointer);
+        pointer++;
+        continue;
+      }
+      // An insertion or deletion, or both halves of a split equality.
+      int length = diffs.text(pointer).length();
+      boolean eliminate = false;
+      for (int half = 0; half < (split[pointer] ? 2 : 1) && !eliminate;
+           half++) {
+        if (half == 1 || diffs.operation(pointer) == Operation.INSERT) {
+          length_insertions2 += length;
         } else {
-          length_deletions2 += thisDiff.text.length();
+          length_deletions2 += length;
         }
         // Eliminate an equality that is smaller or equal to the edits on both
         // sides of it.
-        if (lastequality != null && (lastequality.length()
+        eliminate = lastequality != null && (lastequality.length()
             <= Math.max(length_insertions1, length_deletions1))
             && (lastequality.length()
-                <= Math.max(length_insertions2, length_deletions2))) {
-          //System.out.println("Splitting: '" + lastequality + "'");
-          // Walk back to offending equality.
-          while (thisDiff != equalities.lastElement()) {
-            thisDiff = pointer.previous();
-          }
-          pointer.next();
-
-          // Replace equality with a delete.
-          pointer.set(new Diff(Operation.DELETE, lastequality));
-          // Insert a corresponding an insert.
-          pointer.add(new Diff(Operation.INSERT, lastequality));
-
-          equalities.pop();  // Throw away the equality we just deleted.
-          if (!equalities.empty()) {
-            // Throw away the previous equality (it needs to be reevaluated).
-            equalities.pop();
-          }
-          if (equalities.empty()) {
-            // There are no previous equalities, walk back to the start.
-            while (pointer.hasPrevious()) {
-              pointer.previous();
-            }
-          } else {
-            // There is a safe equality we can fall back to.
-            thisDiff = equalities.lastElement();
-            while (thisDiff != pointer.previous()) {
-              // Intentionally empty loop.
-            }
-          }
-
-          length_insertions1 = 0;  // Reset the counters.
-          length_insertions2 = 0;
-          length_deletions1 = 0;
-          length_deletions2 = 0;
-          lastequality = null;
-          changes = true;
-        }
+                <= Math.max(length_insertions2, length_deletions2));
+      }
+      if (!eliminate) {
+        pointer++;
+        continue;
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      //System.out.println("Splitting: '" + lastequality + "'");
+      // Replace the offending equality with a delete and an insert.
+      int equality = equalities[--top];
+      diffs.set(equality, Operation.DELETE, lastequality);
+      split[equality] = true;
+
+      if (top != 0) {
+        // Throw away the previous equality (it needs to be reevaluated).
+        top--;
+      }
+      if (top == 0) {
+        // There are no previous equalities, walk back to the start.
+        pointer = 0;
+      } else {
+        // There is a safe equality we can fall back to.
+        pointer = equalities[top - 1];
+      }
+
+      length_insertions1 = 0;  // Reset the counters.
+      length_insertions2 = 0;
+      length_deletions1 = 0;
+      length_deletions2 = 0;
+      lastequality = null;
+      changes = true;
     }
 
     // Normalize the diff.
     if (changes) {
+      diffs.expandSplits(split);
       diff_cleanupMerge(diffs);
     }
     diff_cleanupSemanticLossless(diffs);
+    if (diffs.isEmpty()) {
+      return;
+    }
 
     // Find any overlaps between deletions and insertions.
     // e.g: <del>abcxxx</del><ins>xxxdef</ins>
@@ -841,57 +1462,67 @@ public class diff_match_patch {
     // e.g: <del>xxxabc</del><ins>defxxx</ins>
     //   -> <ins>def</ins>xxx<del>abc</del>
     // Only extract an overlap if it is as big as the edit ahead or behind it.
-    pointer = diffs.listIterator();
-    Diff prevDiff = null;
-    thisDiff = null;
-    if (pointer.hasNext()) {
-      prevDiff = pointer.next();
-      if (pointer.hasNext()) {
-        thisDiff = pointer.next();
-      }
-    }
-    while (thisDiff != null) {
-      if (prevDiff.operation == Operation.DELETE &&
-          thisDiff.operation == Operation.INSERT) {
-        String deletion = prevDiff.text;
-        String insertion = thisDiff.text;
+    // The result is built in a new list, since equalities are inserted; the
+    // previous diff is held back, since it may still be trimmed.
+    DiffList result = new DiffList(diffs.size() + 1);
+    Operation prevOp = diffs.operation(0);
+    String prevText = diffs.text(0);
+    pointer = 1;
+    while (pointer < diffs.size()) {
+      Operation thisOp = diffs.operation(pointer);
+      String thisText = diffs.text(pointer);
+      pointer++;
+      if (prevOp == Operation.DELETE && thisOp == Operation.INSERT) {
+        String deletion = prevText;
+        String insertion = thisText;
         int overlap_length1 = this.diff_commonOverlap(deletion, insertion);
         int overlap_length2 = this.diff_commonOverlap(insertion, deletion);
         if (overlap_length1 >= overlap_length2) {
           if (overlap_length1 >= deletion.length() / 2.0 ||
               overlap_length1 >= insertion.length() / 2.0) {
             // Overlap found. Insert an equality and trim the surrounding edits.
-            pointer.previous();
-            pointer.add(new Diff(Operation.EQUAL,
-                                 insertion.substring(0, overlap_length1)));
-            prevDiff.text =
-                deletion.substring(0, deletion.length() - overlap_length1);
-            thisDiff.text = insertion.substring(overlap_length1);
-            // pointer.add inserts the element before the cursor, so there is
-            // no need to step past the new element.
+            result.add(Operation.DELETE,
+                deletion.substring(0, deletion.length() - overlap_length1));
+            result.add(Operation.EQUAL,
+                       insertion.substring(0, overlap_length1));
+            prevOp = Operation.INSERT;
+            prevText = insertion.substring(overlap_length1);
+            continue;
           }
         } else {
           if (overlap_length2 >= deletion.length() / 2.0 ||
               overlap_length2 >= insertion.length() / 2.0) {
             // Reverse overlap found.
             // Insert an equality and swap and trim the surrounding edits.
-            pointer.previous();
-            pointer.add(new Diff(Operation.EQUAL,
-                                 deletion.substring(0, overlap_length2)));
-            prevDiff.operation = Operation.INSERT;
-            prevDiff.text =
-              insertion.substring(0, insertion.length() - overlap_length2);
-            thisDiff.operation = Operation.DELETE;
-            thisDiff.text = deletion.substring(overlap_length2);
-            // pointer.add inserts the element before the cursor, so there is
-            // no need to step past the new element.
+            result.add(Operation.INSERT,
+                insertion.substring(0, insertion.length() - overlap_length2));
+            result.add(Operation.EQUAL,
+                       deletion.substring(0, overlap_length2));
+            prevOp = Operation.DELETE;
+            prevText = deletion.substring(overlap_length2);
+            continue;
           }
         }
-        thisDiff = pointer.hasNext() ? pointer.next() : null;
+        // No overlap; step past the insertion, too.
+        result.add(prevOp, prevText);
+        result.add(thisOp, thisText);
+        if (pointer == diffs.size()) {
+          prevOp = null;
+          break;
+        }
+        prevOp = diffs.operation(pointer);
+        prevText = diffs.text(pointer);
+        pointer++;
+        continue;
       }
-      prevDiff = thisDiff;
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      result.add(prevOp, prevText);
+      prevOp = thisOp;
+      prevText = thisText;
     }
+    if (prevOp != null) {
+      result.add(prevOp, prevText);
+    }
+    diffs.replaceWith(result);
   }
 
   /**
@@ -901,24 +1532,35 @@ public class diff_match_patch {
    * @param diffs LinkedList of Diff objects.
    */
   public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
+    DiffList list = new DiffList(diffs);
+    diff_cleanupSemanticLossless(list);
+    list.copyTo(diffs);
+  }
+
+  /**
+   * Look for single edits surrounded on both sides by equalities
+   * which can be shifted sideways to align the edit to a word boundary.
+   * e.g: The c<ins>at c</ins>ame. -> The <ins>cat </ins>came.
+   * @param diffs DiffList of the differences.
+   */
+  public void diff_cleanupSemanticLossless(DiffList diffs) {
     String equality1, edit, equality2;
     String commonString;
     int commonOffset;
     int score, bestScore;
     String bestEquality1, bestEdit, bestEquality2;
-    // Create a new iterator at the start.
-    ListIterator<Diff> pointer = diffs.listIterator();
-    Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff thisDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+    boolean removed = false;
+    int prevDiff = 0;
+    int thisDiff = 1;
+    int nextDiff = 2;
     // Intentionally ignore the first and last element (don't need checking).
-    while (nextDiff != null) {
-      if (prevDiff.operation == Operation.EQUAL &&
-          nextDiff.operation == Operation.EQUAL) {
+    while (nextDiff < diffs.size()) {
+      if (diffs.operation(prevDiff) == Operation.EQUAL &&
+          diffs.operation(nextDiff) == Operation.EQUAL) {
         // This is a single edit surrounded by equalities.
-        equality1 = prevDiff.text;
-        edit = thisDiff.text;
-        equality2 = nextDiff.text;
+        equality1 = diffs.text(prevDiff);
+        edit = diffs.text(thisDiff);
+        equality2 = diffs.text(nextDiff);
 
         // First, shift the edit as far left as possible.
         commonOffset = diff_commonSuffix(equality1, edit);
@@ -951,31 +1593,32 @@ public class diff_match_patch {
           }
         }
 
-        if (!prevDiff.text.equals(bestEquality1)) {
+        if (!diffs.text(prevDiff).equals(bestEquality1)) {
           // We have an improvement, save it back to the diff.
           if (bestEquality1.length() != 0) {
-            prevDiff.text = bestEquality1;
+            diffs.setText(prevDiff, bestEquality1);
           } else {
-            pointer.previous(); // Walk past nextDiff.
-            pointer.previous(); // Walk past thisDiff.
-            pointer.previous(); // Walk past prevDiff.
-            pointer.remove(); // Delete prevDiff.
-            pointer.next(); // Walk past thisDiff.
-            pointer.next(); // Walk past nextDiff.
+            diffs.markRemoved(prevDiff);
+            removed = true;
           }
-          thisDiff.text = bestEdit;
+          diffs.setText(thisDiff, bestEdit);
           if (bestEquality2.length() != 0) {
-            nextDiff.text = bestEquality2;
+            diffs.setText(nextDiff, bestEquality2);
           } else {
-            pointer.remove(); // Delete nextDiff.
-            nextDiff = thisDiff;
-            thisDiff = prevDiff;
+            // Both equalities can't be empty, so prevDiff is still there.
+            diffs.markRemoved(nextDiff);
+            removed = true;
+            nextDiff++;
+            continue;
           }
         }
       }
       prevDiff = thisDiff;
       thisDiff = nextDiff;
-      nextDiff = pointer.hasNext() ? pointer.next() : null;
+      nextDiff++;
+    }
+    if (removed) {
+      diffs.removeMarked();
     }
   }
 
@@ -1041,13 +1684,27 @@ public class diff_match_patch {
    * @param diffs LinkedList of Diff objects.
    */
   public void diff_cleanupEfficiency(LinkedList<Diff> diffs) {
+    DiffList list = new DiffList(diffs);
+    diff_cleanupEfficiency(list);
+    list.copyTo(diffs);
+  }
+
+  /**
+   * Reduce the number of edits by eliminating operationally trivial equalities.
+   * @param diffs DiffList of the differences.
+   */
+  public void diff_cleanupEfficiency(DiffList diffs) {
     if (diffs.isEmpty()) {
       return;
     }
     boolean changes = false;
-    Stack<Diff> equalities = new Stack<Diff>();  // Stack of equalities.
-    String lastequality = null; // Always equal to equalities.lastElement().text
-    ListIterator<Diff> pointer = diffs.listIterator();
+    // Stack of equalities, by index.  An equality which is split becomes a
+    // deletion, marked in split[], followed by an insertion of the same
+    // text; they are expanded at the end, so the list is never shifted.
+    int[] equalities = new int[16];
+    int top = 0;
+    boolean[] split = new boolean[diffs.size()];
+    String lastequality = null; // Always equal to text(equalities[top - 1])
     // Is there an insertion operation before the last equality.
     boolean pre_ins = false;
     // Is there a deletion operation before the last equality.
@@ -1056,27 +1713,37 @@ public class diff_match_patch {
     boolean post_ins = false;
     // Is there a deletion operation after the last equality.
     boolean post_del = false;
-    Diff thisDiff = pointer.next();
-    Diff safeDiff = thisDiff;  // The last Diff that is known to be unsplitable.
-    while (thisDiff != null) {
-      if (thisDiff.operation == Operation.EQUAL) {
+    // The current diff; half is 1 at the insertion of a split equality.
+    int pointer = 0;
+    int half = 0;
+    // The last diff that is known to be unsplitable.
+    int safe = 0;
+    int safeHalf = 0;
+    while (pointer < diffs.size()) {
+      Operation op = (half == 1) ? Operation.INSERT : diffs.operation(pointer);
+      if (op == Operation.EQUAL) {
         // Equality found.
-        if (thisDiff.text.length() < Diff_EditCost && (post_ins || post_del)) {
+        String text = diffs.text(pointer);
+        if (text.length() < Diff_EditCost && (post_ins || post_del)) {
           // Candidate found.
-          equalities.push(thisDiff);
+          if (top == equalities.length) {
+            equalities = grow(equalities);
+          }
+          equalities[top++] = pointer;
           pre_ins = post_ins;
           pre_del = post_del;
-          lastequality = thisDiff.text;
+          lastequality = text;
         } else {
           // Not a candidate, and can never become one.
-          equalities.clear();
+          top = 0;
           lastequality = null;
-          safeDiff = thisDiff;
+          safe = pointer;
+          safeHalf = 0;
         }
         post_ins = post_del = false;
       } else {
         // An insertion or deletion.
-        if (thisDiff.operation == Operation.DELETE) {
+        if (op == Operation.DELETE) {
           post_del = true;
         } else {
           post_ins = true;
@@ -1095,50 +1762,50 @@ public class diff_match_patch {
                     && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
                         + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
           //System.out.println("Splitting: '" + lastequality + "'");
-          // Walk back to offending equality.
-          while (thisDiff != equalities.lastElement()) {
-            thisDiff = pointer.previous();
-          }
-          pointer.next();
-
-          // Replace equality with a delete.
-          pointer.set(new Diff(Operation.DELETE, lastequality));
-          // Insert a corresponding an insert.
-          pointer.add(thisDiff = new Diff(Operation.INSERT, lastequality));
-
-          equalities.pop();  // Throw away the equality we just deleted.
+          // Replace the offending equality with a delete and an insert.
+          int equality = equalities[--top];
+          diffs.set(equality, Operation.DELETE, lastequality);
+          split[equality] = true;
           lastequality = null;
+          changes = true;
           if (pre_ins && pre_del) {
             // No changes made which could affect previous entry, keep going.
             post_ins = post_del = true;
-            equalities.clear();
-            safeDiff = thisDiff;
+            top = 0;
+            safe = equality;
+            safeHalf = 1;
+            pointer = equality + 1;
+            half = 0;
           } else {
-            if (!equalities.empty()) {
+            if (top != 0) {
               // Throw away the previous equality (it needs to be reevaluated).
-              equalities.pop();
+              top--;
             }
-            if (equalities.empty()) {
+            if (top == 0) {
               // There are no previous questionable equalities,
               // walk back to the last known safe diff.
-              thisDiff = safeDiff;
+              pointer = safe;
+              half = safeHalf;
             } else {
               // There is an equality we can fall back to.
-              thisDiff = equalities.lastElement();
-            }
-            while (thisDiff != pointer.previous()) {
-              // Intentionally empty loop.
+              pointer = equalities[top - 1];
+              half = 0;
             }
             post_ins = post_del = false;
           }
-
-          changes = true;
+          continue;
         }
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      if (half == 0 && split[pointer]) {
+        half = 1;
+      } else {
+        pointer++;
+        half = 0;
+      }
     }
 
     if (changes) {
+      diffs.expandSplits(split);
       diff_cleanupMerge(diffs);
     }
   }
@@ -1149,150 +1816,170 @@ public class diff_match_patch {
    * @param diffs LinkedList of Diff objects.
    */
   public void diff_cleanupMerge(LinkedList<Diff> diffs) {
-    diffs.add(new Diff(Operation.EQUAL, ""));  // Add a dummy entry at the end.
-    ListIterator<Diff> pointer = diffs.listIterator();
+    DiffList list = new DiffList(diffs);
+    diff_cleanupMerge(list);
+    list.copyTo(diffs);
+  }
+
+  /**
+   * Reorder and merge like edit sections.  Merge equalities.
+   * Any edit section can move as long as it doesn't cross an equality.
+   * @param diffs DiffList of the differences.
+   */
+  public void diff_cleanupMerge(DiffList diffs) {
+    // The merged diffs are built in a new list, since factoring out a common
+    // prefix can add an equality at the start.
+    DiffList merged = new DiffList(diffs.size() + 1);
     int count_delete = 0;
     int count_insert = 0;
-    String text_delete = "";
-    String text_insert = "";
-    Diff thisDiff = pointer.next();
-    Diff prevEqual = null;
+    StringBuilder text_delete = new StringBuilder();
+    StringBuilder text_insert = new StringBuilder();
+    boolean prevEqual = false;
     int commonlength;
-    while (thisDiff != null) {
-      switch (thisDiff.operation) {
+    // Pretend there is a dummy equality after the last diff.
+    for (int pointer = 0; pointer <= diffs.size(); pointer++) {
+      Operation op = (pointer < diffs.size()) ?
+                     diffs.operation(pointer) : Operation.EQUAL;
+      String text = (pointer < diffs.size()) ? diffs.text(pointer) : "";
+      switch (op) {
       case INSERT:
         count_insert++;
-        text_insert += thisDiff.text;
-        prevEqual = null;
+        text_insert.append(text);
+        prevEqual = false;
         break;
       case DELETE:
         count_delete++;
-        text_delete += thisDiff.text;
-        prevEqual = null;
+        text_delete.append(text);
+        prevEqual = false;
         break;
       case EQUAL:
         if (count_delete + count_insert > 1) {
-          boolean both_types = count_delete != 0 && count_insert != 0;
-          // Delete the offending records.
-          pointer.previous();  // Reverse direction.
-          while (count_delete-- > 0) {
-            pointer.previous();
-            pointer.remove();
-          }
-          while (count_insert-- > 0) {
-            pointer.previous();
-            pointer.remove();
-          }
-          if (both_types) {
+          String deletion = text_delete.toString();
+          String insertion = text_insert.toString();
+          if (count_delete != 0 && count_insert != 0) {
             // Factor out any common prefixies.
-            commonlength = diff_commonPrefix(text_insert, text_delete);
+            commonlength = diff_commonPrefix(insertion, deletion);
             if (commonlength != 0) {
-              if (pointer.hasPrevious()) {
-                thisDiff = pointer.previous();
-                assert thisDiff.operation == Operation.EQUAL
+              if (!merged.isEmpty()) {
+                int last = merged.size() - 1;
+                assert merged.operation(last) == Operation.EQUAL
                        : "Previous diff should have been an equality.";
-                thisDiff.text += text_insert.substring(0, commonlength);
-                pointer.next();
+                merged.setText(last, merged.text(last)
+                               + insertion.substring(0, commonlength));
               } else {
-                pointer.add(new Diff(Operation.EQUAL,
-                    text_insert.substring(0, commonlength)));
+                merged.add(Operation.EQUAL,
+                           insertion.substring(0, commonlength));
               }
-              text_insert = text_insert.substring(commonlength);
-              text_delete = text_delete.substring(commonlength);
+              insertion = insertion.substring(commonlength);
+              deletion = deletion.substring(commonlength);
             }
             // Factor out any common suffixies.
-            commonlength = diff_commonSuffix(text_insert, text_delete);
+            commonlength = diff_commonSuffix(insertion, deletion);
             if (commonlength != 0) {
-              thisDiff = pointer.next();
-              thisDiff.text = text_insert.substring(text_insert.length()
-                  - commonlength) + thisDiff.text;
-              text_insert = text_insert.substring(0, text_insert.length()
+              text = insertion.substring(insertion.length()
+                  - commonlength) + text;
+              insertion = insertion.substring(0, insertion.length()
                   - commonlength);
-              text_delete = text_delete.substring(0, text_delete.length()
+              deletion = deletion.substring(0, deletion.length()
                   - commonlength);
-              pointer.previous();
             }
           }
-          // Insert the merged records.
-          if (text_delete.length() != 0) {
-            pointer.add(new Diff(Operation.DELETE, text_delete));
+          // Replace the offending records with the merged ones.
+          if (deletion.length() != 0) {
+            merged.add(Operation.DELETE, deletion);
           }
-          if (text_insert.length() != 0) {
-            pointer.add(new Diff(Operation.INSERT, text_insert));
+          if (insertion.length() != 0) {
+            merged.add(Operation.INSERT, insertion);
           }
-          // Step forward to the equality.
-          thisDiff = pointer.hasNext() ? pointer.next() : null;
-        } else if (prevEqual != null) {
+          merged.add(Operation.EQUAL, text);
+        } else if (count_delete + count_insert == 1) {
+          // A lone edit stays as it is.
+          merged.add(diffs.operation(pointer - 1), diffs.text(pointer - 1));
+          merged.add(Operation.EQUAL, text);
+        } else if (prevEqual) {
           // Merge this equality with the previous one.
-          prevEqual.text += thisDiff.text;
-          pointer.remove();
-          thisDiff = pointer.previous();
-          pointer.next();  // Forward direction
+          int last = merged.size() - 1;
+          merged.setText(last, merged.text(last) + text);
+        } else {
+          merged.add(Operation.EQUAL, text);
         }
         count_insert = 0;
         count_delete = 0;
-        text_delete = "";
-        text_insert = "";
-        prevEqual = thisDiff;
+        text_delete.setLength(0);
+        text_insert.setLength(0);
+        prevEqual = true;
         break;
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
     }
-    if (diffs.getLast().text.length() == 0) {
-      diffs.removeLast();  // Remove the dummy entry at the end.
+    if (merged.text(merged.size() - 1).length() == 0) {
+      merged.removeLast();  // Remove the dummy entry at the end.
     }
+    diffs.replaceWith(merged);
 
     /*
      * Second pass: look for single edits surrounded on both sides by equalities
      * which can be shifted sideways to eliminate an equality.
      * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
+     * Eliminated equalities are marked as removed, and dropped at the end.
      */
     boolean changes = false;
-    // Create a new iterator at the start.
-    // (As opposed to walking the current one back.)
-    pointer = diffs.listIterator();
-    Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-    thisDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+    int prevDiff = 0;
+    int thisDiff = 1;
+    int nextDiff = 2;
     // Intentionally ignore the first and last element (don't need checking).
-    while (nextDiff != null) {
-      if (prevDiff.operation == Operation.EQUAL &&
-          nextDiff.operation == Operation.EQUAL) {
+    while (nextDiff < diffs.size()) {
+      if (diffs.operation(prevDiff) == Operation.EQUAL &&
+          diffs.operation(nextDiff) == Operation.EQUAL) {
         // This is a single edit surrounded by equalities.
-        if (thisDiff.text.endsWith(prevDiff.text)) {
+        String prevText = diffs.text(prevDiff);
+        String thisText = diffs.text(thisDiff);
+        String nextText = diffs.text(nextDiff);
+        if (thisText.endsWith(prevText)) {
           // Shift the edit over the previous equality.
-          thisDiff.text = prevDiff.text
-              + thisDiff.text.substring(0, thisDiff.text.length()
-                                           - prevDiff.text.length());
-          nextDiff.text = prevDiff.text + nextDiff.text;
-          pointer.previous(); // Walk past nextDiff.
-          pointer.previous(); // Walk past thisDiff.
-          pointer.previous(); // Walk past prevDiff.
-          pointer.remove(); // Delete prevDiff.
-          pointer.next(); // Walk past thisDiff.
-          thisDiff = pointer.next(); // Walk past nextDiff.
-          nextDiff = pointer.hasNext() ? pointer.next() : null;
+          diffs.setText(thisDiff, prevText
+              + thisText.substring(0, thisText.length() - prevText.length()));
+          diffs.setText(nextDiff, prevText + nextText);
+          diffs.markRemoved(prevDiff);
+          prevDiff = nextDiff;
+          thisDiff = nextDiff + 1;
+          nextDiff = nextDiff + 2;
           changes = true;
-        } else if (thisDiff.text.startsWith(nextDiff.text)) {
+          continue;
+        } else if (thisText.startsWith(nextText)) {
           // Shift the edit over the next equality.
-          prevDiff.text += nextDiff.text;
-          thisDiff.text = thisDiff.text.substring(nextDiff.text.length())
-              + nextDiff.text;
-          pointer.remove(); // Delete nextDiff.
-          nextDiff = pointer.hasNext() ? pointer.next() : null;
+          diffs.setText(prevDiff, prevText + nextText);
+          diffs.setText(thisDiff, thisText.substring(nextText.length())
+              + nextText);
+          diffs.markRemoved(nextDiff);
+          prevDiff = thisDiff;
+          thisDiff = nextDiff + 1;
+          nextDiff = nextDiff + 2;
           changes = true;
+          continue;
         }
       }
       prevDiff = thisDiff;
       thisDiff = nextDiff;
-      nextDiff = pointer.hasNext() ? pointer.next() : null;
+      nextDiff++;
     }
     // If shifts were made, the diff needs reordering and another shift sweep.
     if (changes) {
+      diffs.removeMarked();
       diff_cleanupMerge(diffs);
     }
   }
 
+  /**
+   * Return a copy of the given stack with room for more entries.
+   * @param stack A full stack of indices.
+   * @return The larger stack.
+   */
+  private static int[] grow(int[] stack) {
+    int[] result = new int[stack.length * 2];
+    System.arraycopy(stack, 0, result, 0, stack.length);
+    return result;
+  }
+
   /**
    * loc is a location in text1, compute and return the equivalent location in
    * text2.
@@ -2380,6 +3067,243 @@ public class diff_match_patch {
   }
 
 
+  /**
+   * Class representing a list of diff operations compactly, as parallel
+   * arrays of operations and texts instead of a linked list of Diff
+   * objects.  The diff and cleanup functions work on it by index; their
+   * LinkedList versions convert to and from it.
+   */
+  public static class DiffList {
+    private Operation[] operations;
+    private String[] texts;
+    private int size;
+
+    /**
+     * Constructor.  Initializes an empty list.
+     */
+    public DiffList() {
+      this(8);
+    }
+
+    /**
+     * Constructor.  Initializes an empty list with room for the given
+     * number of diffs.
+     * @param capacity The number of diffs to make room for.
+     */
+    public DiffList(int capacity) {
+      operations = new Operation[Math.max(capacity, 1)];
+      texts = new String[operations.length];
+    }
+
+    /**
+     * Constructor.  Initializes the list with the given diffs.
+     * @param diffs Collection of Diff objects.
+     */
+    public DiffList(Collection<Diff> diffs) {
+      this(diffs.size());
+      for (Diff aDiff : diffs) {
+        add(aDiff.operation, aDiff.text);
+      }
+    }
+
+    /**
+     * @return The number of diffs in the list.
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @return True if the list has no diffs.
+     */
+    public boolean isEmpty() {
+      return size == 0;
+    }
+
+    /**
+     * @param i Index of a diff.
+     * @return The operation of the diff: INSERT, DELETE or EQUAL.
+     */
+    public Operation operation(int i) {
+      checkIndex(i);
+      return operations[i];
+    }
+
+    /**
+     * @param i Index of a diff.
+     * @return The text of the diff.
+     */
+    public String text(int i) {
+      checkIndex(i);
+      return texts[i];
+    }
+
+    /**
+     * Replace a diff.
+     * @param i Index of a diff.
+     * @param operation One of INSERT, DELETE or EQUAL.
+     * @param text The text being applied.
+     */
+    public void set(int i, Operation operation, String text) {
+      checkIndex(i);
+      operations[i] = operation;
+      texts[i] = text;
+    }
+
+    /**
+     * Replace the text of a diff.
+     * @param i Index of a diff.
+     * @param text The text being applied.
+     */
+    public void setText(int i, String text) {
+      checkIndex(i);
+      texts[i] = text;
+    }
+
+    /**
+     * Add a diff to the end of the list.
+     * @param operation One of INSERT, DELETE or EQUAL.
+     * @param text The text being applied.
+     */
+    public void add(Operation operation, String text) {
+      if (size == operations.length) {
+        resize(size * 2);
+      }
+      operations[size] = operation;
+      texts[size] = text;
+      size++;
+    }
+
+    /**
+     * Add all the diffs of another list to the end of this one.
+     * @param diffs DiffList to add.
+     */
+    public void addAll(DiffList diffs) {
+      if (size + diffs.size > operations.length) {
+        resize(Math.max(size * 2, size + diffs.size));
+      }
+      System.arraycopy(diffs.operations, 0, operations, size, diffs.size);
+      System.arraycopy(diffs.texts, 0, texts, size, diffs.size);
+      size += diffs.size;
+    }
+
+    /**
+     * Remove the last diff in the list.
+     */
+    public void removeLast() {
+      checkIndex(size - 1);
+      size--;
+      operations[size] = null;
+      texts[size] = null;
+    }
+
+    /**
+     * @return The diffs in this list, as a LinkedList of new Diff objects.
+     */
+    public LinkedList<Diff> toLinkedList() {
+      LinkedList<Diff> diffs = new LinkedList<Diff>();
+      copyTo(diffs);
+      return diffs;
+    }
+
+    /**
+     * Replace the contents of a LinkedList with the diffs in this list.
+     * @param diffs LinkedList of Diff objects to replace.
+     */
+    public void copyTo(LinkedList<Diff> diffs) {
+      diffs.clear();
+      for (int i = 0; i < size; i++) {
+        diffs.add(new Diff(operations[i], texts[i]));
+      }
+    }
+
+    /**
+     * Display a human-readable version of this list.
+     * @return text version.
+     */
+    public String toString() {
+      return toLinkedList().toString();
+    }
+
+    /**
+     * Replace the contents of this list with those of another, which
+     * should no longer be used.
+     * @param diffs DiffList to take the diffs of.
+     */
+    private void replaceWith(DiffList diffs) {
+      operations = diffs.operations;
+      texts = diffs.texts;
+      size = diffs.size;
+    }
+
+    /**
+     * Mark a diff to be removed by the next call to removeMarked().
+     * @param i Index of a diff.
+     */
+    private void markRemoved(int i) {
+      checkIndex(i);
+      texts[i] = null;
+    }
+
+    /**
+     * Remove the diffs marked by markRemoved(), in a single pass.
+     */
+    private void removeMarked() {
+      int j = 0;
+      for (int i = 0; i < size; i++) {
+        if (texts[i] != null) {
+          operations[j] = operations[i];
+          texts[j] = texts[i];
+          j++;
+        }
+      }
+      Arrays.fill(operations, j, size, null);
+      Arrays.fill(texts, j, size, null);
+      size = j;
+    }
+
+    /**
+     * Follow each deletion marked in split[] with an insertion of the same
+     * text, in a single pass.
+     * @param split Which diffs are split equalities.
+     */
+    private void expandSplits(boolean[] split) {
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        if (split[i]) {
+          count++;
+        }
+      }
+      if (count == 0) {
+        return;
+      }
+      DiffList expanded = new DiffList(size + count);
+      for (int i = 0; i < size; i++) {
+        expanded.add(operations[i], texts[i]);
+        if (split[i]) {
+          expanded.add(Operation.INSERT, texts[i]);
+        }
+      }
+      replaceWith(expanded);
+    }
+
+    private void resize(int capacity) {
+      Operation[] newOperations = new Operation[capacity];
+      String[] newTexts = new String[capacity];
+      System.arraycopy(operations, 0, newOperations, 0, size);
+      System.arraycopy(texts, 0, newTexts, 0, size);
+      operations = newOperations;
+      texts = newTexts;
+    }
+
+    private void checkIndex(int i) {
+      if (i < 0 || i >= size) {
+        throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+      }
+    }
+  }
+
+
   /**
    * Class representing one patch operation.
    */
@@ -0,0 +1,157 @@
+package net.cscott.jdoctest;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * Limits on how much work a single doctest may do, so that a doctest with
+ * an accidental infinite loop fails instead of hanging the whole run.
+ * A doctest may execute at most {@link #maxInstructions} javascript
+ * instructions (as counted by Rhino's instruction observer) and run for
+ * at most {@link #maxMillis} milliseconds; zero means no limit.  The
+ * defaults are given by the {@code net.cscott.jdoctest.budget.instructions}
+ * and {@code net.cscott.jdoctest.budget.millis} properties (by default,
+ * unlimited).  The description of a doctest can override them, the same
+ * way it can say <code>EXPECT FAIL</code>:
+ * <pre>
+ * &#64;doc.test
+ *   A slow test.  TIMEOUT 30 S, MAX INSTRUCTIONS 1000000:
+ *   js> ...
+ * </pre>
+ * A doctest which goes over its budget is reported as such, even if it
+ * was expected to fail; the error can't be caught by the doctest
+ * itself.  The budget is only checked while javascript is running, so a
+ * doctest which blocks inside a single Java method call can still take
+ * longer than its timeout.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Budgets are read from the description of the test:
+ *   js> var b = Budget.forTest("Slow.  TIMEOUT 2 S, MAX INSTRUCTIONS 5000\njs> 1")
+ *   js> b.maxMillis + " " + b.maxInstructions
+ *   2000 5000
+ *   js> var forever = Budget.forTest("Forever.  TIMEOUT 9223372036854776 S")
+ *   js> forever.maxMillis == java.lang.Long.MAX_VALUE
+ *   true
+ * @doc.test
+ *   A limit too large to read fails the doctest:
+ *   js> var cx = Packages.org.mozilla.javascript.Context.getCurrentContext()
+ *   js> var r = JDoctest.execute(cx.getFactory(), null, "Big.java", 1,
+ *     >   "Big.  MAX INSTRUCTIONS 99999999999999999999\njs> 1\n1\n")
+ *   js> r.fail
+ *   Bad doctest limit: MAX INSTRUCTIONS 99999999999999999999
+ * @doc.test
+ *   An infinite loop is stopped:
+ *   js> var cx = Packages.org.mozilla.javascript.Context.getCurrentContext()
+ *   js> var r = JDoctest.execute(cx.getFactory(), null, "Spin.java", 1,
+ *     >   "Spin.  MAX INSTRUCTIONS 100000\njs> while (true) { }\n")
+ *   js> r.overBudget
+ *   true
+ *   js> r.fail
+ *   Doctest exceeded its budget of 100000 instructions.
+ */
+class Budget {
+    /** The default budget. */
+    static final Budget DEFAULT = new Budget
+        (Long.getLong("net.cscott.jdoctest.budget.instructions", 0),
+         Long.getLong("net.cscott.jdoctest.budget.millis", 0));
+    /** How many instructions Rhino executes between calls to the
+     *  instruction observer. */
+    static final int OBSERVER_THRESHOLD = 10000;
+
+    /** The maximum number of instructions, or zero for no limit. */
+    final long maxInstructions;
+    /** The maximum running time in milliseconds, or zero for no limit. */
+    final long maxMillis;
+
+    Budget(long maxInstructions, long maxMillis) {
+        this.maxInstructions = maxInstructions;
+        this.maxMillis = maxMillis;
+    }
+
+    /** Return the budget for the given doctest: the default, unless the
+     *  test's description overrides it. */
+    static Budget forTest(String test_text) {
+        long instructions = Patterns.maxInstructions(test_text);
+        long millis = Patterns.timeoutMillis(test_text);
+        if (instructions < 0 && millis < 0)
+            return DEFAULT;
+        return new Budget(instructions < 0 ? DEFAULT.maxInstructions
+                          : instructions,
+                          millis < 0 ? DEFAULT.maxMillis : millis);
+    }
+
+    /** Start enforcing this budget in the given context, returning the
+     *  state to pass to {@link #finish}. */
+    static Object start(Context cx, Budget budget) {
+        Object saved = cx.getThreadLocal(Meter.class);
+        if (budget.maxInstructions > 0 || budget.maxMillis > 0)
+            cx.putThreadLocal(Meter.class, new Meter(budget));
+        else
+            cx.removeThreadLocal(Meter.class);
+        return saved;
+    }
+    /** Stop enforcing the budget started by {@link #start}. */
+    static void finish(Context cx, Object saved) {
+        if (saved == null)
+            cx.removeThreadLocal(Meter.class);
+        else
+            cx.putThreadLocal(Meter.class, saved);
+    }
+
+    /** The usage of a budget by a running doctest. */
+    private static class Meter {
+        final Budget budget;
+        final long deadline;
+        long instructions = 0;
+        Exceeded exceeded = null;
+        Meter(Budget budget) {
+            this.budget = budget;
+            long now = System.currentTimeMillis();
+            this.deadline = (budget.maxMillis <= 0) ? 0 :
+                (budget.maxMillis > Long.MAX_VALUE - now) ? Long.MAX_VALUE :
+                now + budget.maxMillis;
+        }
+        void observe(int count) {
+            // once over budget, stay over budget: the doctest may have
+            // caught the first exception.
+            if (exceeded == null) {
+                instructions += count;
+                if (budget.maxInstructions > 0 &&
+                    instructions > budget.maxInstructions)
+                    exceeded = new Exceeded
+                        (budget.maxInstructions+" instructions");
+                else if (deadline > 0 &&
+                         System.currentTimeMillis() > deadline)
+                    exceeded = new Exceeded(budget.maxMillis+" ms");
+            }
+            if (exceeded != null)
+                throw exceeded;
+        }
+    }
+
+    /** Thrown when a doctest goes over its budget.  This is an
+     *  {@link Error}, so that it isn't mistaken for an ordinary failure
+     *  of the test. */
+    static class Exceeded extends Error {
+        private static final long serialVersionUID = -3262174532390487441L;
+        Exceeded(String limit) {
+            super("Doctest exceeded its budget of "+limit+".");
+        }
+    }
+
+    /** A context factory whose contexts enforce the budget of the
+     *  doctest they are running. */
+    static class Factory extends ContextFactory {
+        protected void onContextCreated(Context cx) {
+            super.onContextCreated(cx);
+            cx.setGenerateObserverCount(true);
+            cx.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+        }
+        protected void observeInstructionCount(Context cx,
+                                               int instructionCount) {
+            Meter m = (Meter) cx.getThreadLocal(Meter.class);
+            if (m != null)
+                m.observe(instructionCount);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.cscott.jdoctest;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * A class loader which remembers which class names its parent could and
+ * could not load.  The prologue of every doctest imports the current
+ * package, so every unqualified identifier in a doctest (including all of
+ * its local variables) is first looked up as a class in that package.
+ * Each miss normally costs a full search of the class path and a
+ * {@link ClassNotFoundException}; with this loader installed as the
+ * application class loader of the doctests' {@link ContextFactory}, a
+ * repeated lookup is just a hash probe.
+ * <p>
+ * The cache is shared by all the doctests which use the same parent class
+ * loader, and holds at most {@link #MAX_ENTRIES} names; if it fills up,
+ * some entries are discarded.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Both successful and failed lookups are cached:
+ *   js> var l = ClassLookupCache.get(java.lang.ClassLoader.getSystemClassLoader())
+ *   js> l.loadClass("java.lang.String") === l.loadClass("java.lang.String")
+ *   true
+ *   js> function tryLoad(name) {
+ *     >   try { l.loadClass(name); } catch (e) { print(e.javaException.getMessage()); }
+ *     > }
+ *   js> tryLoad("java.lang.NoSuchClass")
+ *   java.lang.NoSuchClass
+ *   js> tryLoad("java.lang.NoSuchClass")
+ *   java.lang.NoSuchClass
+ *   js> l.size() >= 2
+ *   true
+ */
+class ClassLookupCache extends ClassLoader {
+    /** The maximum number of class names remembered by each cache. */
+    static final int MAX_ENTRIES = 8192;
+    /** Marks a class name which the parent class loader couldn't load. */
+    private static final Object MISSING = new Object();
+    private static final Map<ClassLoader,WeakReference<ClassLookupCache>>
+        caches = new WeakHashMap<ClassLoader,WeakReference<ClassLookupCache>>();
+
+    private final ConcurrentHashMap<String,Object> classes =
+        new ConcurrentHashMap<String,Object>();
+
+    private ClassLookupCache(ClassLoader parent) { super(parent); }
+
+    /** Return the caching class loader for the given parent. */
+    static synchronized ClassLookupCache get(ClassLoader parent) {
+        WeakReference<ClassLookupCache> ref = caches.get(parent);
+        ClassLookupCache cache = (ref == null) ? null : ref.get();
+        if (cache == null) {
+            cache = new ClassLookupCache(parent);
+            caches.put(parent, new WeakReference<ClassLookupCache>(cache));
+        }
+        return cache;
+    }
+
+    /** Return the caching class loader for the class loader Rhino would
+     *  use by default for the given factory. */
+    static ClassLookupCache forFactory(ContextFactory factory) {
+        return get(defaultLoader(factory));
+    }
+    /** Return the class loader Rhino uses for a factory without an
+     *  application class loader: the current thread's context class
+     *  loader if it can load Rhino, otherwise the loader of the given
+     *  factory. */
+    static ClassLoader defaultLoader(ContextFactory factory) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            if (loader != null &&
+                loader.loadClass(ContextFactory.class.getName()) ==
+                ContextFactory.class)
+                return loader;
+        } catch (ClassNotFoundException e) {
+            // fall through
+        }
+        return factory.getClass().getClassLoader();
+    }
+
+    /** Return the number of class names currently remembered. */
+    int size() { return classes.size(); }
+
+    protected Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+        Object c = classes.get(name);
+        if (c == null) {
+            try {
+                c = getParent().loadClass(name);
+            } catch (ClassNotFoundException e) {
+                c = MISSING;
+            }
+            remember(name, c);
+        }
+        if (c == MISSING)
+            throw new MissingClassException(name);
+        return (Class<?>) c;
+    }
+
+    private void remember(String name, Object c) {
+        if (classes.size() >= MAX_ENTRIES) {
+            // discard (arbitrary) entries until the cache is 3/4 full.
+            Iterator<String> it = classes.keySet().iterator();
+            while (it.hasNext() && classes.size() > (MAX_ENTRIES*3)/4) {
+                it.next();
+                it.remove();
+            }
+        }
+        classes.put(name, c);
+    }
+
+    /** A cheap {@link ClassNotFoundException} without a stack trace;
+     *  Rhino discards the exception without looking at it. */
+    private static class MissingClassException
+        extends ClassNotFoundException {
+        private static final long serialVersionUID = 6412593837491751024L;
+        MissingClassException(String name) { super(name); }
+        public Throwable fillInStackTrace() { return this; }
+    }
+}
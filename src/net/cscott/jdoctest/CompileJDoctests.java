@@ -0,0 +1,176 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+import org.mozilla.javascript.tools.shell.Global;
+
+/**
+ * Compile the doctests emitted by JDoctest (see the
+ * {@code net.cscott.jdoctest.output} property) into JVM classes, ahead of
+ * time:
+ * <pre>
+ * java -cp lib/jdoctest/jdoctest.jar:lib/jdoctest/js.jar \
+ *      net.cscott.jdoctest.CompileJDoctests api/tests api/tests.jar
+ * </pre>
+ * Each statement of each test is compiled to a class, and the classes
+ * are packaged into a jar with an index (see {@link CompiledDoctests}).
+ * Rerun the tests with {@code -Dnet.cscott.jdoctest.compiled=api/tests.jar}
+ * to use the compiled classes.  The tests are indexed by their paths as
+ * given here, so {@link RerunJDoctests} should be run from the same
+ * directory.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Each statement is compiled to a class, listed in the jar's index:
+ *   js> var dir = java.io.File.createTempFile("jdoctest", "")
+ *   js> dir["delete"]() && dir.mkdir()
+ *   true
+ *   js> var test = new java.io.File(dir, "Foo.java#1.js")
+ *   js> var w = new java.io.FileWriter(test); w.write("js> 1+1\n2\njs> 'a'\na\n"); w.close()
+ *   js> var jar = new java.io.File(dir, "tests.jar")
+ *   js> CompileJDoctests.compile(java.util.Collections.singletonList(test), jar)
+ *   2
+ *   js> var scripts = CompiledDoctests.load(jar).lookup
+ *     >   (test.getPath(), JsJUnitTestBridge.readTest(test))
+ *   js> scripts.length
+ *   2
+ *   js> var cx = Packages.org.mozilla.javascript.Context.getCurrentContext()
+ *   js> var g = new Packages.org.mozilla.javascript.tools.shell.Global(cx)
+ *   js> // the compiled statements are run instead of the ones given here
+ *   js> DoctestSession.run(cx, g, g, "js> 5\n2\njs> 6\na\n", "t", 1, scripts)
+ *   2
+ *   js> CompiledDoctests.load(jar).lookup(test.getPath(), "js> 1+2\n3\n")
+ *   null
+ *   js> test["delete"]() && jar["delete"]() && dir["delete"]()
+ *   true
+ * @doc.test
+ *   No partial jar is left behind if compilation fails:
+ *   js> var dir = java.io.File.createTempFile("jdoctest", "")
+ *   js> dir["delete"]() && dir.mkdir()
+ *   true
+ *   js> var missing = new java.io.File(dir, "Missing.java#1.js")
+ *   js> var jar = new java.io.File(dir, "tests.jar")
+ *   js> try {
+ *     >   CompileJDoctests.compile(java.util.Collections.singletonList(missing), jar)
+ *     > } catch (e) { print(e.javaException.getClass().getName()) }
+ *   java.io.FileNotFoundException
+ *   js> dir.list().length
+ *   0
+ *   js> dir["delete"]()
+ *   true
+ */
+public class CompileJDoctests {
+    private CompileJDoctests() { }
+
+    /** Compile all the tests beneath the directory named by the first
+     *  argument into the jar named by the second. */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java "+CompileJDoctests.class.getName()+
+                               " <test dir> <output jar>");
+            System.exit(2);
+        }
+        List<File> tests = new ArrayList<File>();
+        JsJUnitTestBridge.collectAllTests(new File(args[0]), tests);
+        Collections.sort(tests, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.getPath().compareTo(b.getPath());
+            }
+        });
+        int statements = compile(tests, new File(args[1]));
+        System.err.println("Compiled "+statements+" statements from "+
+                           tests.size()+" doctests into "+args[1]);
+    }
+
+    /** Compile the given tests into a jar, returning the number of
+     *  statements compiled. */
+    static int compile(List<File> tests, File jar) throws IOException {
+        File tmp = new File(jar.getPath()+".tmp");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(tmp));
+        boolean renamed = false;
+        try {
+            int count = compile(tests, out);
+            out.close();
+            if (!tmp.renameTo(jar)) {
+                jar.delete();
+                if (!tmp.renameTo(jar))
+                    throw new IOException("Couldn't write "+jar);
+            }
+            renamed = true;
+            return count;
+        } finally {
+            try {
+                out.close(); // does nothing if already closed
+            } finally {
+                if (!renamed)
+                    tmp.delete(); // don't leave a partial jar behind
+            }
+        }
+    }
+    /** Compile the given tests into the given jar stream. */
+    private static int compile(List<File> tests, JarOutputStream out)
+        throws IOException {
+        int count = 0;
+        StringBuilder index = new StringBuilder();
+        Context cx = JsJUnitTestBridge.enterContext();
+        try {
+            // we need to generate bytecode, not interpret.
+            if (cx.getOptimizationLevel() < 0)
+                cx.setOptimizationLevel(0);
+            CompilerEnvirons env = new CompilerEnvirons();
+            env.initFromContext(cx);
+            ClassCompiler compiler = new ClassCompiler(env);
+            String[] prompts = new Global(cx).getPrompts(cx);
+            for (int i=0; i<tests.size(); i++) {
+                File test = tests.get(i);
+                String text = JsJUnitTestBridge.readTest(test);
+                index.append(CompiledDoctests.key(test.getPath()));
+                index.append('\t').append(CompiledDoctests.hash(text));
+                int j = 0;
+                for (DoctestSession.Statement st :
+                         DoctestSession.parse(text, prompts)) {
+                    String name = "jdoctest.T"+i+"_"+(j++);
+                    Object[] classes;
+                    try {
+                        classes = compiler.compileToClassFiles
+                            (st.input, DoctestSession.SOURCE_NAME, 1, name);
+                    } catch (RhinoException e) {
+                        // the test probably expects this error; it will
+                        // be reported when the statement is rerun.
+                        index.append('\t').append(CompiledDoctests.NOT_COMPILED);
+                        continue;
+                    }
+                    for (int k=0; k<classes.length; k+=2)
+                        write(out, ((String)classes[k]).replace('.','/')+
+                              ".class", (byte[]) classes[k+1]);
+                    index.append('\t').append(name);
+                    count++;
+                }
+                index.append('\n');
+            }
+            write(out, CompiledDoctests.INDEX,
+                  index.toString().getBytes("utf-8"));
+        } finally {
+            Context.exit();
+        }
+        return count;
+    }
+
+    private static void write(JarOutputStream out, String name, byte[] bytes)
+        throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
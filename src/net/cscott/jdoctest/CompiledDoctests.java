@@ -0,0 +1,130 @@
+package net.cscott.jdoctest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mozilla.javascript.Script;
+
+/**
+ * Emitted doctests which have been compiled ahead of time by
+ * {@link CompileJDoctests}.  Set the {@code net.cscott.jdoctest.compiled}
+ * property to the jar it wrote, and {@link JsJUnitTestBridge} (and thus
+ * {@link RerunJDoctests}) will execute the precompiled classes instead of
+ * parsing and compiling the statements of each test again.  Tests which
+ * aren't in the jar, or which have changed since it was written, are run
+ * from source as usual.
+ * @author C. Scott Ananian
+ */
+class CompiledDoctests {
+    /** The name of the index resource in the jar.  Each line of the index
+     *  holds the path of a test, a hash of its text, and the names of the
+     *  classes compiled from each of its statements (or "-" if a statement
+     *  couldn't be compiled), separated by tabs. */
+    static final String INDEX = "jdoctest.index";
+    /** The placeholder for a statement which wasn't compiled. */
+    static final String NOT_COMPILED = "-";
+
+    private static CompiledDoctests instance = null;
+    private static boolean initialized = false;
+
+    private final ClassLoader loader;
+    private final Map<String,String[]> index;
+
+    private CompiledDoctests(ClassLoader loader, Map<String,String[]> index) {
+        this.loader = loader;
+        this.index = index;
+    }
+
+    /** Return the compiled doctests named by the
+     *  {@code net.cscott.jdoctest.compiled} property, or null. */
+    static synchronized CompiledDoctests get() {
+        if (initialized) return instance;
+        initialized = true;
+        String jarName = System.getProperty("net.cscott.jdoctest.compiled");
+        if (jarName == null) return null;
+        try {
+            instance = load(new File(jarName));
+        } catch (IOException e) {
+            System.err.println("WARNING: Can't read compiled doctests from "+
+                               jarName+"; running them from source.");
+        }
+        return instance;
+    }
+
+    /** Read the compiled doctests in the given jar. */
+    static CompiledDoctests load(File jar) throws IOException {
+        if (!jar.isFile()) throw new IOException(jar+" not found");
+        URL url;
+        try {
+            url = jar.toURI().toURL();
+        } catch (MalformedURLException e) {
+            throw new IOException(e.toString());
+        }
+        ClassLoader loader = new URLClassLoader
+            (new URL[] { url }, CompiledDoctests.class.getClassLoader());
+        InputStream in = loader.getResourceAsStream(INDEX);
+        if (in == null) throw new IOException("no index in "+jar);
+        Map<String,String[]> index = new HashMap<String,String[]>();
+        BufferedReader r = new BufferedReader
+            (new InputStreamReader(in, "utf-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 2) continue;
+                String[] value = new String[fields.length-1];
+                System.arraycopy(fields, 1, value, 0, value.length);
+                index.put(fields[0], value);
+            }
+        } finally {
+            r.close();
+        }
+        return new CompiledDoctests(loader, index);
+    }
+
+    /** Return the precompiled statements of the given test, or null if
+     *  it hasn't been compiled (or has changed since it was compiled). */
+    static Script[] scriptsFor(String testSource, String testText) {
+        CompiledDoctests cd = get();
+        return (cd == null) ? null : cd.lookup(testSource, testText);
+    }
+
+    /** Return the statements of the given test compiled into this jar,
+     *  or null if it isn't there (or has changed since). */
+    Script[] lookup(String testSource, String testText) {
+        String[] entry = index.get(key(testSource));
+        if (entry == null || !entry[0].equals(hash(testText)))
+            return null;
+        Script[] scripts = new Script[entry.length-1];
+        try {
+            for (int i=1; i<entry.length; i++)
+                if (!entry[i].equals(NOT_COMPILED))
+                    scripts[i-1] = (Script)
+                        loader.loadClass(entry[i]).newInstance();
+        } catch (Exception e) {
+            return null; // a broken jar; run the test from source.
+        }
+        return scripts;
+    }
+
+    /** Return the index key for the given test path. */
+    static String key(String testSource) {
+        return testSource.replace(File.separatorChar, '/');
+    }
+
+    /** Return the hash of a test's text which is stored in the index. */
+    static String hash(String testText) {
+        MessageDigest md = ResultCache.newDigest();
+        ResultCache.update(md, testText);
+        return ResultCache.hex(md.digest());
+    }
+}
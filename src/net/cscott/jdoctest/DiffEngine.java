@@ -0,0 +1,155 @@
+package net.cscott.jdoctest;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+
+/**
+ * Computes the differences shown when a doctest prints something other
+ * than its expected output.  An engine's configuration is fixed when it
+ * is created, so a single engine can be shared by the taglet and by any
+ * number of threads running doctests in parallel.  The only mutable state
+ * a diff needs is the scratch space of the underlying
+ * {@link diff_match_patch}, which is kept per thread.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Differences are marked up as text and as HTML:
+ *   js> DiffEngine.DEFAULT.diffString("a <b> c", "a <i> c")
+ *   a <[-b-]{+i+}> c
+ *   js> var html = new java.lang.StringBuilder()
+ *   js> DiffEngine.DEFAULT.appendDiff("x", "y", html, new java.lang.StringBuilder())
+ *   js> html
+ *   <del>x</del><ins>y</ins>
+ * @doc.test
+ *   Many threads can share an engine, and get the same results as one:
+ *   js> function input(i) {
+ *     >   var a = "", b = "";
+ *     >   for (var j=0; j<10*i; j++) {
+ *     >     a += "line "+j+(j%7==0 ? " old" : "")+"\n";
+ *     >     b += "line "+(j%5==i%5 ? "" : "x")+j+"\n";
+ *     >   }
+ *     >   return [a, b];
+ *     > }
+ *   js> function task(ab) {
+ *     >   return new java.util.concurrent.Callable({ call: function() {
+ *     >     return DiffEngine.DEFAULT.diffString(ab[0], ab[1]);
+ *     >   } });
+ *     > }
+ *   js> var inputs = [], serial = [], tasks = new java.util.ArrayList()
+ *   js> while (inputs.length < 40) {
+ *     >   var ab = input(inputs.length);
+ *     >   serial.push(String(DiffEngine.DEFAULT.diffString(ab[0], ab[1])));
+ *     >   inputs.push(ab);
+ *     > }
+ *   40
+ *   js> while (tasks.size() < 8*inputs.length)
+ *     >   tasks.add(task(inputs[tasks.size() % inputs.length]));
+ *   true
+ *   js> var pool = java.util.concurrent.Executors.newFixedThreadPool(8)
+ *   js> var results = pool.invokeAll(tasks); pool.shutdown()
+ *   js> var mismatches = 0
+ *   js> for (var k=0; k<results.size(); k++)
+ *     >   if (String(results.get(k).get()) != serial[k % inputs.length])
+ *     >     mismatches++;
+ *   js> mismatches
+ *   0
+ * @doc.test
+ *   Long texts are diffed line by line first, and the diff still
+ *   describes both texts:
+ *   js> var lines = new DiffEngine(0, 4, 1000)
+ *   js> var a = "", b = ""
+ *   js> for (var n = 0; a.length < 5000; n = (n + 13) % 97) {
+ *     >   a += "line " + n + "\n";
+ *     >   b += (n % 3 ? "line " : "Line ") + n + (n % 5 ? "" : "!") + "\n";
+ *     > }; a.length > 5000
+ *   true
+ *   js> function text(diffs, skip) {
+ *     >   var s = "";
+ *     >   for (var i = 0; i < diffs.size(); i++)
+ *     >     if (diffs.operation(i) != skip) s += diffs.text(i);
+ *     >   return s;
+ *     > }
+ *   js> var Op = Packages.name.fraser.neil.plaintext.diff_match_patch.Operation
+ *   js> var diffs = lines.diff(a, b)
+ *   js> text(diffs, Op.INSERT) == a && text(diffs, Op.DELETE) == b
+ *   true
+ */
+final class DiffEngine {
+    /** The engine used for doctest failures, which never gives up on
+     *  finding the smallest diff, except that outputs of more than
+     *  10,000 characters are first diffed line by line. */
+    static final DiffEngine DEFAULT = new DiffEngine(0, (short) 4, 10000);
+
+    /** Seconds to spend on a diff before settling for a larger one, or
+     *  zero for no limit. */
+    final float timeout;
+    /** The cost of an edit, in characters, used when cleaning up a
+     *  diff. */
+    final short editCost;
+    /** Texts at least this long (both of them) are first diffed line by
+     *  line, which is much faster but may not find the smallest diff;
+     *  zero to never do so. */
+    final int lineModeLength;
+    /** Configured when the engine is created, and never changed after;
+     *  it is not handed out, so that it can't be. */
+    private final diff_match_patch differ;
+
+    DiffEngine(float timeout, short editCost, int lineModeLength) {
+        this.timeout = timeout;
+        this.editCost = editCost;
+        this.lineModeLength = lineModeLength;
+        this.differ = new diff_match_patch();
+        this.differ.Diff_Timeout = timeout;
+        this.differ.Diff_EditCost = editCost;
+    }
+
+    /** Return the semantically cleaned-up differences between
+     *  <code>a</code> and <code>b</code>. */
+    diff_match_patch.DiffList diff(String a, String b) {
+        // Use diff implementation from:
+        // http://code.google.com/p/google-diff-match-patch/
+        boolean lineMode = lineModeLength > 0 &&
+            a.length() >= lineModeLength && b.length() >= lineModeLength;
+        diff_match_patch.DiffList diffs =
+            differ.diff_mainList(a, b, lineMode);
+        differ.diff_cleanupSemantic(diffs);
+        return diffs;
+    }
+
+    /** Append the differences between <code>a</code> and
+     *  <code>b</code> to <code>html</code>, with the deleted and inserted
+     *  text marked up with <code>&lt;del&gt;</code> and
+     *  <code>&lt;ins&gt;</code>, and to <code>text</code>, marked with
+     *  <code>[-...-]</code> and <code>{+...+}</code>. */
+    void appendDiff(String a, String b, StringBuilder html,
+                    StringBuilder text) {
+        diff_match_patch.DiffList diffs = diff(a, b);
+        for (int i=0; i<diffs.size(); i++) {
+            String d = diffs.text(i);
+            switch (diffs.operation(i)) {
+            case EQUAL:
+                JDoctest.html_escape(d, 0, d.length(), html);
+                text.append(d);
+                break;
+            case DELETE:
+                html.append("<del>");
+                JDoctest.html_escape(d, 0, d.length(), html);
+                html.append("</del>");
+                text.append("[-").append(d).append("-]");
+                break;
+            case INSERT:
+                html.append("<ins>");
+                JDoctest.html_escape(d, 0, d.length(), html);
+                html.append("</ins>");
+                text.append("{+").append(d).append("+}");
+                break;
+            }
+        }
+    }
+
+    /** Return the differences between <code>a</code> and <code>b</code>,
+     *  marked up as plain text by {@link #appendDiff}. */
+    String diffString(String a, String b) {
+        StringBuilder text = new StringBuilder();
+        appendDiff(a, b, new StringBuilder(), text);
+        return text.toString();
+    }
+}
@@ -0,0 +1,251 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extract <code>@doc.test</code> blocks directly from java source files,
+ * without running javadoc.  Doc comments are processed the same way
+ * javadoc processes them: leading whitespace and asterisks are stripped
+ * from each line, and a block tag starts at the beginning of a line.
+ * Each test is given the line javadoc would report for it, that of the
+ * declaration it documents, so that both report the same positions (and
+ * share entries in the {@link ResultCache}).
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Tests are found in doc comments, and placed at their declarations:
+ *   js> var end = "*" + "/"
+ *   js> var src = ["package p;", "",
+ *     >   "/" + "** A class.", " * @doc" + ".test js> 1+1", " *   2", " " + end,
+ *     >   "@Deprecated", "public class Foo {",
+ *     >   "  /" + "** @doc" + ".test", "   *  js> 'a' " + end,
+ *     >   "  java.util.Map<String,", "    Integer> m;", "}"].join("\n")
+ *   js> var tests = DoctestExtractor.extract(new java.io.File("Foo.java"), src)
+ *   js> tests.size()
+ *   2
+ *   js> var t = tests.get(0); t + " " + t.packageName + " " + t.tagNum
+ *   Foo.java:8 p 0
+ *   js> t.text == "js> 1+1\n   2"
+ *   true
+ *   js> tests.get(1) + " " + tests.get(1).text
+ *   Foo.java:12 js> 'a'
+ */
+class DoctestExtractor {
+    private DoctestExtractor() { }
+
+    /** A single <code>@doc.test</code> block found in a source file. */
+    static class Doctest {
+        /** The package containing the documented element, or null for
+         *  the unnamed package. */
+        final String packageName;
+        /** The source file containing the test. */
+        final File file;
+        /** The line number javadoc reports for the test: that of the
+         *  declaration its doc comment documents. */
+        final int line;
+        /** The index of this test among the tests in its doc comment. */
+        final int tagNum;
+        /** The text of the tag, as javadoc would report it. */
+        final String text;
+        Doctest(String packageName, File file, int line, int tagNum,
+                String text) {
+            this.packageName = packageName;
+            this.file = file;
+            this.line = line;
+            this.tagNum = tagNum;
+            this.text = text;
+        }
+        public String toString() { return file.getPath()+":"+line; }
+    }
+
+    /** Recursively collect all the java source files beneath
+     *  <code>f</code> (which may also be a single source file). */
+    static void collectSources(File f, List<File> results) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            Arrays.sort(files);
+            for (File ff : files)
+                collectSources(ff, results);
+        } else if (f.getName().endsWith(".java"))
+            results.add(f);
+    }
+
+    /** Return all the doctests in the given java source file. */
+    static List<Doctest> extract(File f) throws IOException {
+        return extract(f, JsJUnitTestBridge.readFully(f));
+    }
+
+    /** Return all the doctests in the given java source text. */
+    static List<Doctest> extract(File f, String src) {
+        src = src.replace("\r\n", "\n");
+        List<String> comments = new ArrayList<String>();
+        List<Integer> declarationLines = new ArrayList<Integer>();
+        // strip comments and literals from the code, so we can find the
+        // package declaration.
+        StringBuilder code = new StringBuilder();
+        int line = 1;
+        for (int i=0; i<src.length(); ) {
+            char c = src.charAt(i);
+            if (src.startsWith("//", i)) {
+                int end = src.indexOf('\n', i);
+                i = (end < 0) ? src.length() : end;
+            } else if (src.startsWith("/*", i)) {
+                int end = src.indexOf("*/", i+2);
+                end = (end < 0) ? src.length() : end+2;
+                String comment = src.substring(i, end);
+                if (comment.startsWith("/**") && !comment.equals("/**/")) {
+                    comments.add(comment);
+                    declarationLines.add(declarationLine
+                                     (src, end, line+countLines(comment)));
+                }
+                line += countLines(comment);
+                code.append(' ');
+                i = end;
+            } else if (c == '"' || c == '\'') {
+                int j = i+1;
+                while (j < src.length() && src.charAt(j) != c &&
+                       src.charAt(j) != '\n')
+                    j += (src.charAt(j) == '\\') ? 2 : 1;
+                code.append(c).append(c);
+                i = Math.min(j+1, src.length());
+            } else {
+                if (c == '\n') line++;
+                code.append(c);
+                i++;
+            }
+        }
+        Matcher m = P_package.matcher(code);
+        String packageName = m.find() ? m.group(1) : null;
+
+        List<Doctest> results = new ArrayList<Doctest>();
+        for (int i=0; i<comments.size(); i++)
+            extractTags(packageName, f, declarationLines.get(i),
+                        comments.get(i), results);
+        return results;
+    }
+    /** Return the line javadoc reports as the position of the element
+     *  documented by the comment which ends at <code>start</code> (on
+     *  the given line): the line of the keyword which starts a type
+     *  declaration, or of the name declared by any other. */
+    private static int declarationLine(String src, int start, int line) {
+        int lastLine = line, angle = 0;
+        boolean annotation = false;
+        for (int i=start; i<src.length(); ) {
+            char c = src.charAt(i);
+            if (c == '\n') {
+                line++; i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (src.startsWith("//", i)) {
+                int end = src.indexOf('\n', i);
+                i = (end < 0) ? src.length() : end;
+            } else if (src.startsWith("/*", i)) {
+                int end = src.indexOf("*/", i+2);
+                end = (end < 0) ? src.length() : end+2;
+                line += countLines(src.substring(i, end));
+                i = end;
+            } else if (src.startsWith("@interface", i)) {
+                return line;
+            } else if (c == '@') {
+                annotation = true;
+                i++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int j = i+1;
+                while (j < src.length() &&
+                       Character.isJavaIdentifierPart(src.charAt(j)))
+                    j++;
+                String word = src.substring(i, j);
+                if (annotation) {
+                    // skip the (possibly qualified) name of the annotation
+                    // and its arguments.
+                    while (j < src.length() && (src.charAt(j) == '.' ||
+                           Character.isJavaIdentifierPart(src.charAt(j))))
+                        j++;
+                    j = skipArguments(src, j);
+                    line += countLines(src.substring(i, j));
+                    annotation = false;
+                } else if (word.equals("class") || word.equals("interface")
+                           || word.equals("enum")) {
+                    return line;
+                } else {
+                    lastLine = line;
+                }
+                i = j;
+            } else if (c == '<') {
+                angle++; i++;
+            } else if (c == '>') {
+                angle--; i++;
+            } else if (c == '(' || c == '=' || c == ';' || c == '{' ||
+                       (c == ',' && angle <= 0)) {
+                break;
+            } else {
+                i++;
+            }
+        }
+        return lastLine;
+    }
+    /** Skip whitespace and a parenthesized argument list (if any) which
+     *  starts at <code>i</code>, returning the index following them. */
+    private static int skipArguments(String src, int i) {
+        int j = i;
+        while (j < src.length() && Character.isWhitespace(src.charAt(j)))
+            j++;
+        if (j >= src.length() || src.charAt(j) != '(') return i;
+        for (int depth = 0; j < src.length(); j++) {
+            char c = src.charAt(j);
+            if (c == '"' || c == '\'') {
+                for (j++; j < src.length() && src.charAt(j) != c; j++)
+                    if (src.charAt(j) == '\\') j++;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return j+1;
+            }
+        }
+        return j;
+    }
+    private static final Pattern P_package =
+        Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+    private static final Pattern P_block_tag =
+        Pattern.compile("^\\s*@(\\S+)");
+
+    private static void extractTags(String packageName, File f,
+                                    int line, String comment,
+                                    List<Doctest> results) {
+        // strip the delimiters and the leading asterisks from each line.
+        String[] lines =
+            comment.substring(3, comment.length()-2).split("\n", -1);
+        for (int i=1; i<lines.length; i++)
+            lines[i] = lines[i].replaceFirst("^\\s*\\*+", "");
+        // now look for block tags.
+        StringBuilder text = null;
+        int tagNum = 0;
+        for (int i=0; i<=lines.length; i++) {
+            Matcher m = (i < lines.length) ?
+                P_block_tag.matcher(lines[i]) : null;
+            boolean isTag = (m == null) || m.find();
+            if (isTag && text != null) {
+                results.add(new Doctest(packageName, f, line, tagNum++,
+                                        text.toString().trim()));
+                text = null;
+            }
+            if (m == null) break;
+            if (isTag && m.group(1).equals("doc.test")) {
+                text = new StringBuilder(lines[i].substring(m.end()));
+            } else if (!isTag && text != null)
+                text.append('\n').append(lines[i]);
+        }
+    }
+
+    private static int countLines(String s) {
+        int n = 0;
+        for (int i=0; i<s.length(); i++)
+            if (s.charAt(i) == '\n') n++;
+        return n;
+    }
+}
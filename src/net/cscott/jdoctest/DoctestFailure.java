@@ -0,0 +1,113 @@
+package net.cscott.jdoctest;
+
+/**
+ * Why a doctest failed.  Either a statement printed something other than
+ * its expected output, in which case the statement, the expected and
+ * actual outputs, and the location of the statement are kept separately,
+ * or the test failed in some other way, described by a message.  The
+ * failure is formatted once, when it is created, both as HTML (with the
+ * differences between the outputs marked up) for the documentation, and
+ * as plain text for error reports.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   A mismatched output is described in full:
+ *   js> var f = DoctestFailure.mismatch("1+2", "5", "3", "Foo.java#7")
+ *   js> f.expected + " " + f.actual
+ *   5 3
+ *   js> f
+ *   Doctest failure:
+ *   1+2
+ *   Expected:
+ *   5
+ *   Actual:
+ *   3
+ *   Diff:
+ *   [-5-]{+3+}
+ *   (Foo.java#7)
+ * @doc.test
+ *   Other failures just have a message:
+ *   js> var f = DoctestFailure.message("a < b")
+ *   js> f.html
+ *   a &lt; b
+ *   js> f.expected
+ *   null
+ */
+class DoctestFailure {
+    /** The message describing a failure other than a mismatched output,
+     *  or null. */
+    final String message;
+    /** The statement whose output didn't match, or null. */
+    final String input;
+    /** The output expected from {@link #input}, or null. */
+    final String expected;
+    /** The output {@link #input} actually printed, or null. */
+    final String actual;
+    /** The source and line of {@link #input}, as <code>source#line</code>,
+     *  or null if they aren't known. */
+    final String location;
+    /** The failure, as HTML. */
+    final String html;
+    /** The failure, as plain text. */
+    final String text;
+
+    private DoctestFailure(String message, String input, String expected,
+                           String actual, String location,
+                           String html, String text) {
+        this.message = message;
+        this.input = input;
+        this.expected = expected;
+        this.actual = actual;
+        this.location = location;
+        this.html = html;
+        this.text = text;
+    }
+
+    /** Return a failure described by the given message. */
+    static DoctestFailure message(String message) {
+        return new DoctestFailure(message, null, null, null, null,
+                                  JDoctest.html_escape(message), message);
+    }
+
+    /** Return the failure of the statement <code>input</code> (at the
+     *  given location, which may be null) to print its expected
+     *  output. */
+    static DoctestFailure mismatch(String input, String expected,
+                                   String actual, String location) {
+        StringBuilder html = new StringBuilder("Doctest failure:\n");
+        StringBuilder text = new StringBuilder("Doctest failure:\n");
+        html.append(JDoctest.html_escape(input));
+        text.append(input);
+        html.append("\nExpected:\n").append(JDoctest.html_escape(expected));
+        text.append("\nExpected:\n").append(expected);
+        html.append("\nActual:\n").append(JDoctest.html_escape(actual));
+        text.append("\nActual:\n").append(actual);
+        html.append("\nDiff:\n");
+        text.append("\nDiff:\n");
+        DiffEngine.DEFAULT.appendDiff(expected, actual, html, text);
+        html.append('\n');
+        text.append('\n');
+        if (location != null) {
+            html.append('(').append(JDoctest.html_escape(location)).append(')');
+            text.append('(').append(location).append(')');
+        }
+        return new DoctestFailure(null, input, expected, actual, location,
+                                  html.toString(), text.toString());
+    }
+
+    /** Return the fields of this failure, as an array of strings, so
+     *  that it can be handed to another class loader or stored. */
+    String[] toArray() {
+        return new String[] {
+            message, input, expected, actual, location, html, text
+        };
+    }
+    /** Return the failure stored by {@link #toArray}, or null if
+     *  <code>a</code> is null. */
+    static DoctestFailure fromArray(String[] a) {
+        if (a == null) return null;
+        return new DoctestFailure(a[0], a[1], a[2], a[3], a[4], a[5], a[6]);
+    }
+
+    /** Return the failure as plain text. */
+    public String toString() { return text; }
+}
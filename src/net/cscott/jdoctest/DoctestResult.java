@@ -0,0 +1,34 @@
+package net.cscott.jdoctest;
+
+/** The outcome of evaluating a single doctest, before it has been
+ *  compared against the test's <code>EXPECT FAIL</code> status and
+ *  reported.
+ * @author C. Scott Ananian
+ */
+class DoctestResult {
+    /** The number of tests run, if the doctest passed. */
+    final int testsRun;
+    /** Why the doctest failed, or null if it passed. */
+    final DoctestFailure fail;
+    /** True if the doctest failed because it went over its
+     *  {@link Budget}. */
+    final boolean overBudget;
+    /** The nanoseconds spent evaluating the doctest in each
+     *  {@link Timings.Phase}, or null if the result was replayed from
+     *  the {@link ResultCache}. */
+    final long[] timings;
+
+    DoctestResult(int testsRun, DoctestFailure fail) {
+        this(testsRun, fail, false);
+    }
+    DoctestResult(int testsRun, DoctestFailure fail, boolean overBudget) {
+        this(testsRun, fail, overBudget, null);
+    }
+    DoctestResult(int testsRun, DoctestFailure fail, boolean overBudget,
+                  long[] timings) {
+        this.testsRun = testsRun;
+        this.fail = fail;
+        this.overBudget = overBudget;
+        this.timings = timings;
+    }
+}
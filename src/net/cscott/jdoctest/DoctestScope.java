@@ -0,0 +1,164 @@
+package net.cscott.jdoctest;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.NativeJavaClass;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.tools.shell.Global;
+
+/**
+ * Create the javascript scopes that doctests are evaluated in.
+ * By default every doctest gets a brand new {@link Global}, which
+ * re-creates all the standard objects and shell functions each time.
+ * If the {@code net.cscott.jdoctest.sharedScope} property is set to
+ * {@code true}, a single sealed {@link Global} is built instead, and each
+ * doctest is evaluated in a lightweight child scope whose prototype is the
+ * shared global.  Doctests can still define top-level variables and
+ * import packages and classes, but can no longer modify the standard
+ * objects (which are shared between tests).
+ * <p>
+ * The shared {@link Global} is kept per thread, since
+ * {@link DoctestSession} redirects the global's output streams while
+ * each test statement runs.  All of these globals share a single
+ * {@link SharedClassCache}, so Java classes are only reflected once.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   A private global is its own scope:
+ *   js> var cx = Packages.org.mozilla.javascript.Context.getCurrentContext()
+ *   js> var g = new Packages.org.mozilla.javascript.tools.shell.Global(cx)
+ *   js> DoctestScope.newScope(cx, g) === g
+ *   true
+ * @doc.test
+ *   Scopes sharing a sealed global keep their variables and imports to
+ *   themselves, and can't change the standard objects:
+ *   js> var cx = Packages.org.mozilla.javascript.Context.getCurrentContext()
+ *   js> var g = DoctestScope.sealedGlobal(cx)
+ *   js> var s1 = DoctestScope.newScope(cx, g), s2 = DoctestScope.newScope(cx, g)
+ *   js> function run(scope, js) { return cx.evaluateString(scope, js, "t", 1, null) }
+ *   js> run(s1, "var x = 1; importPackage(java.io); importClass(java.util.BitSet); typeof File + ' ' + typeof BitSet")
+ *   function function
+ *   js> run(s2, "typeof x + ' ' + typeof File + ' ' + typeof BitSet")
+ *   undefined undefined undefined
+ *   js> try { run(s1, "Object.prototype.foo = 1") } catch (e) { print(e.message) }
+ *   Cannot modify a property of a sealed object: foo. (t#1)
+ */
+class DoctestScope {
+    private DoctestScope() { }
+
+    /** True if doctests should share a single sealed global scope. */
+    static final boolean SHARED =
+        Boolean.getBoolean("net.cscott.jdoctest.sharedScope");
+
+    /** Return the number of worker threads to evaluate doctests on: the
+     *  value of the {@code net.cscott.jdoctest.threads} property, or else
+     *  the number of available processors. */
+    static int threads() {
+        Integer n = Integer.getInteger("net.cscott.jdoctest.threads");
+        if (n != null && n > 0) return n;
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static final ThreadLocal<Global> sharedGlobal =
+        new ThreadLocal<Global>();
+
+    /** Return a {@link Global} to run a doctest with: either a new one,
+     *  or (in shared mode) this thread's sealed shared global. */
+    static Global global(Context cx) {
+        if (!SHARED) {
+            Global global = new Global();
+            SharedClassCache.associate(cx, global);
+            global.init(cx);
+            return global;
+        }
+        Global global = sharedGlobal.get();
+        if (global == null) {
+            global = sealedGlobal(cx);
+            sharedGlobal.set(global);
+        }
+        return global;
+    }
+    /** Return a new sealed {@link Global}, to be shared by doctests. */
+    static Global sealedGlobal(Context cx) {
+        Global global = new Global();
+        SharedClassCache.associate(cx, global);
+        global.setSealedStdLib(true);
+        global.init(cx);
+        global.sealObject();
+        return global;
+    }
+
+    /** Discard this thread's shared global (if any), so that the next
+     *  call to {@link #global} builds a new one.  The global's
+     *  <code>Packages</code> object looks up classes with the application
+     *  class loader in effect when the global was built. */
+    static void reset() {
+        sharedGlobal.remove();
+    }
+
+    /** Return a fresh top-level scope for a single doctest, evaluated
+     *  with the given {@link Global} (as returned by {@link #global}). */
+    static Scriptable newScope(Context cx, Global global) {
+        if (!global.isSealed())
+            return global; // a private global is its own scope.
+        ImporterTopLevel scope = new ImporterTopLevel();
+        scope.setPrototype(global);
+        scope.setParentScope(null);
+        // the shared global's importPackage/importClass would modify the
+        // (sealed) shared scope; shadow them with per-scope versions.
+        defineImporter(scope, "importPackage", false);
+        defineImporter(scope, "importClass", true);
+        return scope;
+    }
+
+    private static void defineImporter(ImporterTopLevel scope, String name,
+                                       boolean isClass) {
+        Importer f = new Importer(scope, name, isClass);
+        ScriptRuntime.setFunctionProtoAndParent(f, scope);
+        scope.defineProperty(name, f, ScriptableObject.DONTENUM);
+    }
+
+    /** An <code>importPackage</code> or <code>importClass</code> function
+     *  bound to a specific child scope. */
+    private static class Importer extends BaseFunction {
+        private static final long serialVersionUID = 5396581934209046153L;
+        private final ImporterTopLevel scope;
+        private final String name;
+        private final boolean isClass;
+        Importer(ImporterTopLevel scope, String name, boolean isClass) {
+            this.scope = scope;
+            this.name = name;
+            this.isClass = isClass;
+        }
+        public String getFunctionName() { return name; }
+
+        @SuppressWarnings("deprecation")
+        public Object call(Context cx, Scriptable callScope,
+                           Scriptable thisObj, Object[] args) {
+            if (!isClass) {
+                scope.importPackage(cx, scope, args, this);
+                return Undefined.instance;
+            }
+            for (Object arg : args) {
+                if (!(arg instanceof NativeJavaClass))
+                    throw Context.reportRuntimeError
+                        ("Function importClass must be called with a "+
+                         "class; had \""+Context.toString(arg)+
+                         "\" instead.");
+                NativeJavaClass cl = (NativeJavaClass) arg;
+                String n = cl.getClassObject().getName();
+                n = n.substring(n.lastIndexOf('.')+1);
+                Object val = scope.get(n, scope);
+                if (val != NOT_FOUND && val != cl)
+                    throw Context.reportRuntimeError
+                        ("Cannot import \""+n+"\" since a property by "+
+                         "that name is already defined.");
+                scope.put(n, scope, cl);
+            }
+            return Undefined.instance;
+        }
+    }
+}
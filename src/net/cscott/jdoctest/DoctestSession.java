@@ -0,0 +1,238 @@
+package net.cscott.jdoctest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.tools.ToolErrorReporter;
+import org.mozilla.javascript.tools.shell.Global;
+
+/**
+ * Run an interactive javascript session and check its output.  This
+ * follows {@link Global#runDoctest} exactly (the same prompts, output
+ * comparison, and failure messages) except that each statement is
+ * compiled through the {@link ScriptCache}, and the state of the
+ * comparison is kept per session instead of in the {@link Global}.
+ * @author C. Scott Ananian
+ */
+class DoctestSession {
+    private DoctestSession() { }
+
+    /** The name given to each statement of a session. */
+    static final String SOURCE_NAME = "doctest input";
+
+    /** A single statement of a session, and its expected output. */
+    static class Statement {
+        /** The javascript source of the statement. */
+        final String input;
+        /** The output expected from it. */
+        final String expected;
+        /** The line of the session on which the expected output ends. */
+        final int endLine;
+        Statement(String input, String expected, int endLine) {
+            this.input = input;
+            this.expected = expected;
+            this.endLine = endLine;
+        }
+    }
+
+    /** Split a doctest session into statements, using the given primary
+     *  and continuation prompts. */
+    static List<Statement> parse(String session, String[] prompts) {
+        List<Statement> statements = new ArrayList<Statement>();
+        String[] lines = session.split("\r\n?|\n");
+        String prompt0 = prompts[0].trim();
+        String prompt1 = prompts[1].trim();
+        int i = 0;
+        while (i < lines.length && !lines[i].trim().startsWith(prompt0))
+            i++; // skip lines that don't look like shell sessions
+        while (i < lines.length) {
+            StringBuilder input = new StringBuilder();
+            input.append(lines[i].trim().substring(prompt0.length()));
+            input.append('\n');
+            i++;
+            while (i < lines.length && lines[i].trim().startsWith(prompt1)) {
+                input.append(lines[i].trim().substring(prompt1.length()));
+                input.append('\n');
+                i++;
+            }
+            StringBuilder expected = new StringBuilder();
+            while (i < lines.length && !lines[i].trim().startsWith(prompt0)) {
+                expected.append(lines[i]).append('\n');
+                i++;
+            }
+            statements.add(new Statement(input.toString(),
+                                         expected.toString(), i));
+        }
+        return statements;
+    }
+
+    /**
+     * Run the doctest session <code>session</code> in the given scope,
+     * using the output streams and prompts of <code>global</code>.
+     * @return the number of statements run.
+     * @throws Mismatch if the output of any statement doesn't match the
+     *  expected output.
+     */
+    static int run(Context cx, Global global, Scriptable scope,
+                   String session, String sourceName, int lineNumber) {
+        return run(cx, global, scope, session, sourceName, lineNumber, null);
+    }
+
+    /**
+     * Run the doctest session <code>session</code>, using the given
+     * precompiled scripts for its statements.  If <code>compiled</code>
+     * is null, or has no script for a statement, the statement is
+     * compiled (and cached) as usual.  The session's {@link Budget} is
+     * enforced, if the context's factory supports it.
+     * @throws Budget.Exceeded if the session goes over its budget.
+     */
+    static int run(Context cx, Global global, Scriptable scope,
+                   String session, String sourceName, int lineNumber,
+                   Script[] compiled) {
+        Object savedBudget = Budget.start(cx, Budget.forTest(session));
+        try {
+            return run(cx, global, scope, parse(session, global.getPrompts(cx)),
+                       sourceName, lineNumber, compiled);
+        } finally {
+            Budget.finish(cx, savedBudget);
+        }
+    }
+    private static int run(Context cx, Global global, Scriptable scope,
+                           List<Statement> statements, String sourceName,
+                           int lineNumber, Script[] compiled) {
+        Map<String,String> canonicalizations = new HashMap<String,String>();
+        int testCount = 0;
+        for (Statement st : statements) {
+            Script script = (compiled != null && testCount < compiled.length)
+                ? compiled[testCount] : null;
+            String resultString = evaluate(cx, global, scope, script,
+                                           st.input);
+            testCount++;
+            if (!outputMatches(canonicalizations, st.expected, resultString))
+                throw new Mismatch(st, resultString, sourceName,
+                                   lineNumber+st.endLine-1);
+        }
+        return testCount;
+    }
+
+    /** Thrown when the output of a statement doesn't match its expected
+     *  output.  Its message is the same as that of
+     *  {@link Global#runDoctest}, but the statement and the outputs are
+     *  also available separately, so they needn't be parsed out of the
+     *  message. */
+    static class Mismatch extends EvaluatorException {
+        private static final long serialVersionUID = 4416503712519934712L;
+        /** The statement which failed. */
+        final String input;
+        /** The output expected from the statement. */
+        final String expected;
+        /** The output the statement actually printed. */
+        final String actual;
+        Mismatch(Statement st, String actual, String sourceName, int line) {
+            super("doctest failure running:\n" + st.input +
+                  "expected: " + st.expected + "actual: " + actual + "\n",
+                  sourceName, (sourceName == null) ? 0 : line);
+            this.input = st.input;
+            this.expected = st.expected;
+            this.actual = actual;
+        }
+        /** Return the failure this describes. */
+        DoctestFailure failure() {
+            // the statement and expected output end with a newline.
+            return DoctestFailure.mismatch
+                (chomp(input), chomp(expected), actual,
+                 (sourceName() != null && lineNumber() > 0) ?
+                 sourceName()+"#"+lineNumber() : null);
+        }
+        private static String chomp(String s) {
+            return s.endsWith("\n") ? s.substring(0, s.length()-1) : s;
+        }
+    }
+
+    /** Evaluate a single statement, returning everything it printed
+     *  (including its value and any errors it reported).  The statement
+     *  is compiled first, unless <code>script</code> is non-null. */
+    private static String evaluate(Context cx, Global global,
+                                   Scriptable scope, Script script,
+                                   String inputString) {
+        PrintStream savedOut = global.getOut();
+        PrintStream savedErr = global.getErr();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        global.setOut(new PrintStream(out));
+        global.setErr(new PrintStream(err));
+        String resultString = "";
+        ErrorReporter savedErrorReporter = cx.getErrorReporter();
+        cx.setErrorReporter(new ToolErrorReporter(false, global.getErr()));
+        try {
+            if (script == null)
+                script = ScriptCache.compile(cx, inputString, SOURCE_NAME);
+            Object result = script.exec(cx, scope);
+            if (result != Context.getUndefinedValue() &&
+                !(result instanceof Function &&
+                  inputString.trim().startsWith("function")))
+                resultString = Context.toString(result);
+        } catch (RhinoException e) {
+            ToolErrorReporter.reportException(cx.getErrorReporter(), e);
+        } finally {
+            global.setOut(savedOut);
+            global.setErr(savedErr);
+            cx.setErrorReporter(savedErrorReporter);
+            resultString += err.toString() + out.toString();
+        }
+        return resultString;
+    }
+
+    /** Compare expected and actual output, allowing object hash codes
+     *  (as printed by {@link Object#toString}) to differ, as long as they
+     *  differ consistently throughout the session. */
+    private static boolean outputMatches(Map<String,String> canonicalizations,
+                                         String expected, String actual) {
+        expected = expected.trim();
+        actual = actual.trim().replace("\r\n", "\n");
+        if (expected.equals(actual))
+            return true;
+        for (Map.Entry<String,String> entry : canonicalizations.entrySet())
+            expected = expected.replace(entry.getKey(), entry.getValue());
+        if (expected.equals(actual))
+            return true;
+        Matcher expectedMatcher = P_hash.matcher(expected);
+        Matcher actualMatcher = P_hash.matcher(actual);
+        while (true) {
+            if (!expectedMatcher.find())
+                return false;
+            if (!actualMatcher.find())
+                return false;
+            if (actualMatcher.start() != expectedMatcher.start())
+                return false;
+            int start = expectedMatcher.start();
+            if (!expected.substring(0, start).equals(actual.substring(0, start)))
+                return false;
+            String expectedGroup = expectedMatcher.group();
+            String actualGroup = actualMatcher.group();
+            String mapping = canonicalizations.get(expectedGroup);
+            if (mapping == null) {
+                canonicalizations.put(expectedGroup, actualGroup);
+                expected = expected.replace(expectedGroup, actualGroup);
+            } else if (!actualGroup.equals(mapping)) {
+                return false; // wrong object!
+            }
+            if (expected.equals(actual))
+                return true;
+        }
+    }
+    private static final Pattern P_hash = Pattern.compile("@[0-9a-fA-F]+");
+}
@@ -7,24 +7,20 @@
 package net.cscott.jdoctest;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.PrintStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import name.fraser.neil.plaintext.diff_match_patch;
-
 import org.junit.runner.RunWith;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.tools.shell.Global;
 
 import com.sun.javadoc.Doc;
@@ -91,6 +87,13 @@ public class JDoctest implements Taglet {
     // JavaScript context factory
     private ContextFactory contextFactory = new JDoctestContextFactory();
 
+    /** Create a new taglet; {@link #register} is normally used instead. */
+    public JDoctest() { }
+    /** Create a new taglet which reports to the given error reporter. */
+    JDoctest(DocErrorReporter docErrorReporter) {
+        this.docErrorReporter = docErrorReporter;
+    }
+
     /**
      * Return the name of this custom tag.
      * @doc.test
@@ -192,6 +195,13 @@ public class JDoctest implements Taglet {
                taglet.docErrorReporter = (DocErrorReporter)
                    f.get(config);
            } catch (Throwable t) { /* ignore */ }
+       if (taglet.docErrorReporter == null) {
+           // if we're running under JDoctestDoclet, use its reporter
+           // (the doclet has already printed the version notice)
+           taglet.docErrorReporter = Prescan.reporter();
+           if (taglet.docErrorReporter != null)
+               versionPrinted = true;
+       }
        if (taglet.docErrorReporter == null) {
            // if taglet.docErrorReporter is still null, we'll do the compatible
            // thing and just emit errors to stderr
@@ -201,13 +211,27 @@ public class JDoctest implements Taglet {
            tagletMap.remove(taglet.getName());
        }
        tagletMap.put(taglet.getName(), taglet);
-       if (taglet.docErrorReporter!=null && !versionPrinted) {
-	   taglet.docErrorReporter.printNotice
+       if (taglet.docErrorReporter!=null)
+           printVersion(taglet.docErrorReporter);
+    }
+    /** Print a notice with the JDoctest version, if we haven't already. */
+    static void printVersion(DocErrorReporter reporter) {
+       if (!versionPrinted) {
+	   reporter.printNotice
 	       (Version.PACKAGE_STRING+"; "+
 		"Bug reports to "+Version.PACKAGE_BUGREPORT);
 	   versionPrinted = true;
        }
     }
+    /** Print the JDoctest version to <code>out</code>, if we haven't
+     *  already. */
+    static void printVersion(PrintStream out) {
+       if (!versionPrinted) {
+	   out.println(Version.PACKAGE_STRING+"; "+
+		       "Bug reports to "+Version.PACKAGE_BUGREPORT);
+	   versionPrinted = true;
+       }
+    }
     /**
      * Given the <code>Tag</code> representation of this custom
      * tag, return its string representation.
@@ -234,7 +258,19 @@ public class JDoctest implements Taglet {
 	sb.append("</dd>");
 	return sb.toString();
     }
-    private static String getPackage(Doc d) {
+    /**
+     * Run and report the doctests in the given <code>Tag</code>s, without
+     * typesetting them.
+     * @param tags  the array of <code>Tag</code>s representing of this custom tag.
+     */
+    void check(Tag[] tags) {
+	for (int i=0; i<tags.length; i++) {
+	    SourcePosition sp = tags[i].position();
+	    String pkg = getPackage(tags[i].holder());
+	    doOne(pkg, sp, i, tags[i].text(), null);
+	}
+    }
+    static String getPackage(Doc d) {
 	if (d instanceof ProgramElementDoc)
 	    return getPackage(((ProgramElementDoc)d).containingPackage());
 	if (d instanceof PackageDoc)
@@ -245,225 +281,341 @@ public class JDoctest implements Taglet {
 	return null;
     }
 
-    private int testsExpectedPass = 0, testsExpectedFail = 0;
-    private int testsUnexpectedPass = 0, testsUnexpectedFail = 0;
+    // counters are atomic so that they can be shared with other threads.
+    private final AtomicInteger testsExpectedPass = new AtomicInteger();
+    private final AtomicInteger testsExpectedFail = new AtomicInteger();
+    private final AtomicInteger testsUnexpectedPass = new AtomicInteger();
+    private final AtomicInteger testsUnexpectedFail = new AtomicInteger();
+    private final AtomicInteger testsOverBudget = new AtomicInteger();
     private static final Pattern P_initial_ws =
 	Pattern.compile("\\n[ \\t]*?(?=(js|  )>)");
-    private static final Pattern P_test_descr =
-	Pattern.compile("(?sm)\\A(.*?)(^js&gt;)");
-    private static final Pattern P_test_results =
-	Pattern.compile("doctest failure running:\n(.*?)\n?expected: (.*?)\n?actual: (.*)\n(?: \\((.*#\\d+)\\))?", Pattern.DOTALL);
-    private void doOne(String packageName, SourcePosition sp, int tagNum,
-		       String test_text, StringBuilder sb) {
+    void doOne(String packageName, SourcePosition sp, int tagNum,
+	       String test_text, StringBuilder sb) {
+	Timings t = new Timings();
 	// strip consistent indentation from all lines (based on first line)
-	Matcher m = P_initial_ws.matcher(test_text);
-	if (m.find()) {
-	    String prefix = m.group();
-	    test_text = test_text.replaceAll(Pattern.quote(prefix), "\n");
-	}
+	test_text = stripIndentation(test_text);
+	t.lap(Timings.Phase.STRIP);
 	// look for EXPECT FAIL in the test.
         boolean expect_fail = Patterns.expectFail(test_text);
+	String prologue = prologue(packageName);
 
-	String fail = null;
-	// Create Javascript context.
-	String prologue = (packageName == null) ? null :
+	// use the result from the doclet's prescan, if there was one.
+	DoctestResult result = Prescan.lookup(sp, test_text);
+	if (result == null)
+	    result = execute(contextFactory, packageName,
+			     sp.file().getName(), sp.line(), test_text);
+	t.add(result.timings);
+	String fail = report(sp, expect_fail, result);
+	t.lap(Timings.Phase.REPORT);
+	// emit the test text to a file, if requested
+	String test_path = System.getProperty("net.cscott.jdoctest.output");
+	if (test_path != null) {
+	    String baseName=sp.file().getName().replaceFirst("\\..*","");
+	    String contents = sp.toString()+"\n\n"+
+		(prologue == null ? test_text :
+		 test_text.replaceFirst("js>","js> "+prologue+"\njs>"));
+	    TestWriter.emit(new File(test_path), packageName,
+			    "test-"+baseName+"-"+sp.line()+"-"+(tagNum+1)+".js",
+			    contents, sp, docErrorReporter);
+	    t.lap(Timings.Phase.EMIT);
+	}
+	if (sb != null) { // typesetting
+	    typeset(test_text, fail, sb);
+	    t.lap(Timings.Phase.TYPESET);
+	}
+	t.record(packageName, sp.file().getPath(), sp.line(), tagNum+1, null,
+		 result.timings == null);
+    }
+    /** Typeset the given test, and its (html-escaped) failure message, if
+     *  any, as HTML.  The test is escaped and its prompts and outputs are
+     *  marked in a single pass, straight into <code>sb</code>.
+     *  Text before the first <code>js&gt;</code> prompt is a description.
+     *  Each prompt is marked as "not code", and so is each line which
+     *  doesn't start with a prompt (a response); as in the regular
+     *  expressions this replaced, an empty line joins the line after it
+     *  to its response.
+     * @doc.test
+     *  js> var sb = new java.lang.StringBuilder()
+     *  js> JDoctest.typeset("Add:\njs> 1 +\n  > 2\n3\n\njs> \"<\"", null, sb)
+     *  js> String(sb).replace(/ class="nocode doctest-/g, " n-")
+     *  <div class="doctest-info">Add:
+     *  </div><pre class="prettyprint lang-js"><span n-prompt">js&gt;</span> 1 +
+     *  <span n-prompt">  &gt;</span> 2
+     *  <span n-output">3</span>
+     *  <span n-output">
+     *  <span n-prompt">js&gt;</span> &quot;&lt;&quot;</span></pre>
+     */
+    private static void typeset(String test_text, String fail,
+				StringBuilder sb) {
+	int n = test_text.length();
+	// text before the first js> is a test description.
+	int start = 0;
+	for (int i=0; i<n; i++) {
+	    if (isLineStart(test_text, 0, i) && test_text.startsWith("js>", i)) {
+		if (i > 0) {
+		    sb.append("<div class=\"doctest-info\">");
+		    html_escape(test_text, 0, i, sb);
+		    sb.append("</div>");
+		    start = i;
+		}
+		break;
+	    }
+	}
+	sb.append("<pre class=\"prettyprint lang-js\">");
+	int i = start;
+	while (i < n) {
+	    char c = test_text.charAt(i);
+	    if (isLineStart(test_text, start, i)) {
+		// flag the js> and > prompts as "not code"
+		if (isPrompt(test_text, i)) {
+		    i = typesetPrompt(test_text, i, sb);
+		    continue;
+		}
+		// any remaining lines are responses, "not code".  (A
+		// response can't end between \r and \n.)
+		if (!(c == '\r' && i+1 < n && test_text.charAt(i+1) == '\n')) {
+		    sb.append("<span class=\"nocode doctest-output\">");
+		    html_escape(test_text, i, ++i, sb);
+		    if (isLineTerminator(c) && isPrompt(test_text, i))
+			i = typesetPrompt(test_text, i, sb);
+		    int j = i;
+		    while (j < n && !isLineTerminator(test_text.charAt(j)))
+			j++;
+		    html_escape(test_text, i, j, sb);
+		    sb.append("</span>");
+		    i = j;
+		    continue;
+		}
+	    }
+	    html_escape(test_text, i, ++i, sb);
+	}
+	sb.append("</pre>\n");
+	if (fail!=null) {
+	    sb.append("<pre class=\"doctest-fail\" style=\"background:red;color:white;font-weight:bold;\">");
+	    sb.append(fail); // already html-escaped
+	    sb.append("</pre>\n");
+	}
+    }
+    private static boolean isPrompt(String s, int i) {
+	return s.startsWith("js>", i) || s.startsWith("  >", i);
+    }
+    private static int typesetPrompt(String s, int i, StringBuilder sb) {
+	sb.append("<span class=\"nocode doctest-prompt\">");
+	html_escape(s, i, i+3, sb);
+	sb.append("</span>");
+	return i+3;
+    }
+    /** Return true if a line of <code>s</code> starts at <code>i</code>
+     *  (which is less than its length), in the sense of the
+     *  <code>^</code> of a multiline {@link Pattern} matching from
+     *  <code>start</code>. */
+    private static boolean isLineStart(String s, int start, int i) {
+	if (i == start) return true;
+	char prev = s.charAt(i-1);
+	return isLineTerminator(prev) && !(prev == '\r' && s.charAt(i) == '\n');
+    }
+    /** Return true if <code>c</code> ends a line, in the sense of
+     *  {@link Pattern}. */
+    private static boolean isLineTerminator(char c) {
+	return c == '\n' || c == '\r' || c == '\u0085' ||
+	    c == '\u2028' || c == '\u2029';
+    }
+
+    /** Strip consistent indentation from all lines of a test (based on
+     *  the indentation of the first prompt). */
+    static String stripIndentation(String test_text) {
+	Matcher m = P_initial_ws.matcher(test_text);
+	if (!m.find() || m.end() - m.start() == 1)
+	    return test_text;
+	// remove the indentation after every newline, without compiling a
+	// pattern for every test.
+	String prefix = m.group();
+	StringBuilder sb = new StringBuilder(test_text.length());
+	int last = 0;
+	for (int i = test_text.indexOf(prefix); i >= 0;
+	     i = test_text.indexOf(prefix, last)) {
+	    sb.append(test_text, last, i).append('\n');
+	    last = i + prefix.length();
+	}
+	return sb.append(test_text, last, test_text.length()).toString();
+    }
+    /** Return the javascript which imports the given package, or null
+     *  for the unnamed package. */
+    static String prologue(String packageName) {
+	return (packageName == null) ? null :
 	    ("importPackage(Packages."+packageName+");");
+    }
+
+    /**
+     * Evaluate a single doctest, or replay its result from the
+     * {@link ResultCache} if it is enabled.  This doesn't report anything,
+     * so it may be invoked from any thread.
+     * @param test_text the text of the test, with indentation already
+     *        stripped.
+     */
+    static DoctestResult execute(ContextFactory contextFactory,
+				 String packageName, String fileName,
+				 int line, String test_text) {
+	ResultCache cache = ResultCache.get(contextFactory);
+	if (cache == null)
+	    return evaluate(contextFactory, packageName, fileName, line,
+			    test_text);
+	String key = cache.key(packageName, fileName, line, test_text);
+	DoctestResult result = cache.lookup(key);
+	if (result == null) {
+	    result = evaluate(contextFactory, packageName, fileName, line,
+			      test_text);
+	    // running out of time may not happen next time.
+	    if (!result.overBudget)
+		cache.store(key, result);
+	}
+	return result;
+    }
+    private static DoctestResult evaluate(ContextFactory contextFactory,
+					  String packageName, String fileName,
+					  int line, String test_text) {
+	DoctestFailure fail = null;
+	int testsRun = 0;
+	boolean overBudget = false;
+	Timings t = new Timings();
+	// Create Javascript context.
+	String prologue = prologue(packageName);
 	Context cx = contextFactory.enterContext();
 	try {
-	    Global global = new Global(cx); // this is also a scope.
+	    t.lap(Timings.Phase.CONTEXT);
+	    Global global = DoctestScope.global(cx);
+	    Scriptable scope = DoctestScope.newScope(cx, global);
+	    t.lap(Timings.Phase.SCOPE);
 	    // import the package.
 	    if (prologue!=null)
-		cx.evaluateString(global, prologue, "<init>", 1, null);
+		ScriptCache.compile(cx, prologue, "<init>").exec(cx, scope);
+	    t.lap(Timings.Phase.PROLOGUE);
 	    // okay, evaluate the doctest.
 	    // if the tests fail, we will throw an exception here.
-	    int testsRun = global.runDoctest(cx, global, test_text,
-					     sp.file().getName(), sp.line());
-	    if (expect_fail) {
-		testsUnexpectedPass += testsRun;
-		fail = "doctest unexpectedly passed.";
-		if (docErrorReporter!=null)
-		    docErrorReporter.printError(sp, fail);
-		else {
-		    System.err.println("DOCTEST UNEXPECTED PASS at "+sp);
-		    System.exit(2);
-		}
-	    } else {
-		testsExpectedPass += testsRun;
-		if (docErrorReporter!=null && false /* too noisy */)
-		    docErrorReporter.printNotice(sp,
-						 testsRun+" tests passed.");
-	    }
+	    testsRun = DoctestSession.run(cx, global, scope, test_text,
+					  fileName, line);
+	} catch (DoctestSession.Mismatch e) {
+	    t.lap(Timings.Phase.RUN);
+	    // run Diff!
+	    fail = e.failure();
+	    t.lap(Timings.Phase.DIFF);
 	} catch (AssertionError e) {
-	    fail = e.getMessage();
-	    if (fail==null) fail="<unknown assertion failure>";
+	    fail = failure(e.getMessage(), "<unknown assertion failure>", t);
 	} catch (RhinoException e) {
-	    fail = e.getMessage();
-	    if (fail==null) fail="<unknown failure>";
+	    fail = failure(e.getMessage(), "<unknown failure>", t);
+	} catch (Budget.Exceeded e) {
+	    fail = failure(e.getMessage(), null, t);
+	    overBudget = true;
 	} finally {
 	    Context.exit();
 	}
-	if (fail != null) {
-	    // hack layout a bit
-	    Matcher failmsg = P_test_results.matcher(fail);
-	    if (failmsg.matches()) {
-		final String testname = failmsg.group(1);
-		final String expected = failmsg.group(2);
-		final String actual = failmsg.group(3);
-		final String srcloc = failmsg.group(4);
-		// run Diff!
-		final String diff = diffString(expected, actual);
-		fail = "Doctest failure:\n"+
-		    html_escape(testname) + "\n"+
-		    "Expected:\n" + html_escape(expected)+"\n"+
-		    "Actual:\n" + html_escape(actual)+"\n"+
-		    "Diff:\n" + diff +"\n";
-		if (srcloc!=null) { fail+='('+html_escape(srcloc)+')'; }
-	    } else {
-		fail = fail.replaceAll("(?m)^(expected|actual): ", "$0\n");
-		fail = html_escape(fail);
-	    }
-	    if (expect_fail) {
-		testsExpectedFail += 1;
-		if (docErrorReporter!=null)
-		    docErrorReporter.printWarning(sp, "Doctest failed as expected at "+sp);
-		else {
-		    System.err.println("DOCTEST EXPECTED FAIL at "+sp);
-		}
-	    } else {
-		testsUnexpectedFail += 1;
+	t.lap(Timings.Phase.RUN);
+	return new DoctestResult(testsRun, fail, overBudget, t.nanos);
+    }
+    private static DoctestFailure failure(String message, String dflt,
+					  Timings t) {
+	t.lap(Timings.Phase.RUN);
+	DoctestFailure fail =
+	    DoctestFailure.message((message==null) ? dflt : message);
+	t.lap(Timings.Phase.ESCAPE);
+	return fail;
+    }
+
+    /**
+     * Update the pass/fail counters and report the result of a doctest.
+     * Reports are serialized, so that this can safely be called from
+     * multiple threads.
+     * @return the html-escaped failure message to typeset, or null if
+     *         the test passed.
+     */
+    private String report(SourcePosition sp, boolean expect_fail,
+			  DoctestResult result) {
+	synchronized (JDoctest.class) {
+	    String fail = (result.fail == null) ? null : result.fail.html;
+	    if (result.overBudget) {
+		// a distinct failure, whether or not one was expected.
+		testsOverBudget.incrementAndGet();
 		if (docErrorReporter!=null)
-		    docErrorReporter.printError(sp, html_unescape(fail));
+		    docErrorReporter.printError(sp, result.fail.text);
 		else {
-		    System.err.println("DOCTEST UNEXPECTED FAIL at "+sp);
-		    System.err.println(html_unescape(fail));
+		    System.err.println("DOCTEST OVER BUDGET at "+sp);
+		    System.err.println(result.fail.text);
 		    System.exit(1);
 		}
+		return fail;
 	    }
-	}
-	// emit the test text to a file, if requested
-	String test_path = System.getProperty("net.cscott.jdoctest.output");
-	if (test_path != null) {
-	    File outdir = new File(test_path, packageName);
-	    String baseName=sp.file().getName().replaceFirst("\\..*","");
-	    File outf = new File
-		(outdir, "test-"+baseName+"-"+sp.line()+"-"+(tagNum+1)+".js");
-	    try {
-		outdir.mkdirs(); // ensure directory exists
-		Writer w = new OutputStreamWriter
-		    (new FileOutputStream(outf),"utf-8");
-		w.write(sp.toString()+"\n\n");
-		w.write(prologue == null ? test_text :
-			test_text.replaceFirst("js>","js> "+prologue+"\njs>"));
-		w.close();
-	    } catch (IOException e) {
-		if (docErrorReporter!=null)
-		    docErrorReporter.printError(sp, "Couldn't write to "+outf);
-		else
-		    System.err.println("ERROR: Couldn't write to "+outf);
-		    System.exit(3);
+	    if (fail == null) {
+		if (expect_fail) {
+		    testsUnexpectedPass.addAndGet(result.testsRun);
+		    fail = "doctest unexpectedly passed.";
+		    if (docErrorReporter!=null)
+			docErrorReporter.printError(sp, fail);
+		    else {
+			System.err.println("DOCTEST UNEXPECTED PASS at "+sp);
+			System.exit(2);
+		    }
+		} else {
+		    testsExpectedPass.addAndGet(result.testsRun);
+		    if (docErrorReporter!=null && false /* too noisy */)
+			docErrorReporter.printNotice(sp, result.testsRun+
+						     " tests passed.");
+		}
 	    }
+	    if (fail != null) {
+		if (expect_fail) {
+		    testsExpectedFail.incrementAndGet();
+		    if (docErrorReporter!=null)
+			docErrorReporter.printWarning(sp, "Doctest failed as expected at "+sp);
+		    else {
+			System.err.println("DOCTEST EXPECTED FAIL at "+sp);
+		    }
+		} else {
+		    testsUnexpectedFail.incrementAndGet();
+		    if (docErrorReporter!=null)
+			docErrorReporter.printError(sp, result.fail.text);
+		    else {
+			System.err.println("DOCTEST UNEXPECTED FAIL at "+sp);
+			System.err.println(result.fail.text);
+			System.exit(1);
+		    }
+		}
+	    }
+	    return fail;
 	}
-	// typeset the text.
-	String s = html_escape(test_text);
-	// text before the first js> is a test description.
-	Matcher mm = P_test_descr.matcher(s);
-	if (mm.find() && mm.end(1) > 0) {
-	    sb.append("<div class=\"doctest-info\">");
-	    sb.append(mm.group(1));
-	    sb.append("</div>");
-	    s = s.substring(mm.start(2));
-	}
-	sb.append("<pre class=\"prettyprint lang-js\">");
-	// flag the js> and > prompts as "not code"
-	s = s.replaceAll("(?m)^(js|  )&gt;",
-			 "<span class=\"nocode doctest-prompt\">$0</span>");
-	// any remaining lines are responses, "not code"
-	s = s.replaceAll("(?m)^[^<].*$",
-			 "<span class=\"nocode doctest-output\">$0</span>");
-	sb.append(s);
-	sb.append("</pre>\n");
-	if (fail!=null) {
-	    sb.append("<pre class=\"doctest-fail\" style=\"background:red;color:white;font-weight:bold;\">");
-	    sb.append(fail); // already html-escaped
-	    sb.append("</pre>\n");
-	}
-    }
-
-    private static final diff_match_patch differ = new diff_match_patch() {{
-        Diff_Timeout = 0;
-    }};
-    private static String diffString(String a, String b) {
-        // Use diff implementation from:
-        // http://code.google.com/p/google-diff-match-patch/
-        StringBuffer sb = new StringBuffer();
-        LinkedList<diff_match_patch.Diff> diffs = differ.diff_main(a, b, false);
-        differ.diff_cleanupSemantic(diffs);
-        for (diff_match_patch.Diff d : diffs) {
-            switch (d.operation) {
-            case EQUAL:
-                sb.append(html_escape(d.text));
-                break;
-            case DELETE:
-                sb.append("<del>");
-                sb.append(html_escape(d.text));
-                sb.append("</del>");
-                break;
-            case INSERT:
-                sb.append("<ins>");
-                sb.append(html_escape(d.text));
-                sb.append("</ins>");
-                break;
-            }
-        }
-        return sb.toString();
     }
 
-    private static final Pattern P_html_special = Pattern.compile("[<>&\"]");
-    private static String html_escape_char(String s) {
-	assert s.length()==1;
-	switch (s.charAt(0)) {
-	case '<': return "&lt;";
-	case '>': return "&gt;";
-	case '&': return "&amp;";
-	case '"': return "&quot;";
-	default: return s;
-	}
-    }
-    private static String html_escape(String s) {
-	Matcher m = P_html_special.matcher(s);
-	StringBuffer sb = new StringBuffer();
-	while (m.find())
-	    m.appendReplacement(sb, html_escape_char(m.group()));
-	m.appendTail(sb);
+    static String html_escape(String s) {
+	StringBuilder sb = new StringBuilder(s.length() + 16);
+	html_escape(s, 0, s.length(), sb);
 	return sb.toString();
     }
-    private static final Pattern P_unhtml =
-        Pattern.compile("&\\w+;|</?(ins|del)>");
-    // change <del>...</del> to [-...-] and <ins>...</ins> to {+...+}
-    // as well as replacing &...; sequences
-    private static String html_unescape_group(String s) {
-        s = s.intern();
-        if (s == "<del>")  return "[-";
-        if (s == "</del>") return "-]";
-        if (s == "<ins>")  return "{+";
-        if (s == "</ins>") return "+}";
-        if (s == "&lt;")   return "<";
-        if (s == "&gt;")   return ">";
-        if (s == "&amp;")  return "&";
-        if (s == "&quot;") return "\"";
-        assert false; return s;
-    }
-    private static String html_unescape(String s) {
-        Matcher m = P_unhtml.matcher(s);
-        StringBuffer sb = new StringBuffer();
-        while (m.find())
-            m.appendReplacement(sb, html_unescape_group(m.group()));
-        m.appendTail(sb);
-        return sb.toString();
+    /** Append the html-escaped characters of <code>s</code> from
+     *  <code>start</code> to <code>end</code> to <code>sb</code>. */
+    static void html_escape(String s, int start, int end,
+			    StringBuilder sb) {
+	int last = start;
+	for (int i=start; i<end; i++) {
+	    String entity;
+	    switch (s.charAt(i)) {
+	    case '<': entity = "&lt;"; break;
+	    case '>': entity = "&gt;"; break;
+	    case '&': entity = "&amp;"; break;
+	    case '"': entity = "&quot;"; break;
+	    default: continue;
+	    }
+	    sb.append(s, last, i).append(entity);
+	    last = i+1;
+	}
+	sb.append(s, last, end);
     }
 
-    /** JavaScript context with privileged access to Java. */
-    static class JDoctestContextFactory extends ContextFactory {
+    /** JavaScript context with privileged access to Java, which
+     *  enforces the {@link Budget} of each doctest. */
+    static class JDoctestContextFactory extends Budget.Factory {
+	JDoctestContextFactory() {
+	    // remember which names are (and aren't) classes
+	    initApplicationClassLoader(ClassLookupCache.forFactory(this));
+	}
 	protected Context makeContext() {
 	    return new Context(this) {
 		// JavaScript 1.8 by default
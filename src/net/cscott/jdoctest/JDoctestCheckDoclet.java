@@ -0,0 +1,41 @@
+package net.cscott.jdoctest;
+
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.LanguageVersion;
+import com.sun.javadoc.RootDoc;
+import com.sun.javadoc.Tag;
+
+/**
+ * A doclet which only runs doctests.  It evaluates all the
+ * <code>@doc.test</code> tags (in parallel, like {@link JDoctestDoclet})
+ * and reports the results, but doesn't write any documentation, so it
+ * doesn't need an output directory.  {@link JavadocJUnitTestBridge} uses
+ * it to run doctests from JUnit.  From the command line:
+ * <pre>
+ * javadoc -doclet net.cscott.jdoctest.JDoctestCheckDoclet \
+ *         -docletpath lib/jdoctest/jdoctest.jar:lib/jdoctest/js.jar:bin \
+ *         -J-ea -private &lt;your source files&gt;
+ * </pre>
+ * @author C. Scott Ananian
+ */
+public class JDoctestCheckDoclet {
+    /** Run all the doctests in <code>root</code>. */
+    public static boolean start(RootDoc root) {
+        Prescan.start(root, DoctestScope.threads());
+        try {
+            JDoctest taglet = new JDoctest(root);
+            for (Doc d : Prescan.allDocs(root)) {
+                Tag[] tags = d.tags(taglet.getName());
+                if (tags.length > 0)
+                    taglet.check(tags);
+            }
+        } finally {
+            Prescan.finish();
+        }
+        return true;
+    }
+    /** We handle generics, annotations, etc. */
+    public static LanguageVersion languageVersion() {
+        return LanguageVersion.JAVA_1_5;
+    }
+}
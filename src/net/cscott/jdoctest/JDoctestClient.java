@@ -0,0 +1,89 @@
+package net.cscott.jdoctest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A thin client for the {@link JDoctestServer}.  Each argument names an
+ * emitted test, or a directory of them:
+ * <pre>
+ * java -cp lib/jdoctest/jdoctest.jar net.cscott.jdoctest.JDoctestClient \
+ *      api/tests/com.example.foo
+ * </pre>
+ * The server runs the tests and the client prints the results, exiting
+ * with a non-zero status if any test failed.  Use the single argument
+ * {@code -stop} to shut the server down.  The client only needs the
+ * JDoctest classes on its class path, so it starts quickly.
+ * @author C. Scott Ananian
+ */
+public class JDoctestClient {
+    private JDoctestClient() { }
+
+    /** The port the server listens on, if the
+     *  {@code net.cscott.jdoctest.server.port} property isn't set. */
+    static final int DEFAULT_PORT = 7392;
+    /** The request to run some tests.  It is followed by the absolute
+     *  path of each test (or test directory), one per line, and then by
+     *  an empty line. */
+    static final String RUN = "RUN";
+    /** The request to shut down the server. */
+    static final String STOP = "STOP";
+    /** The start of the last line of the response, if all tests passed. */
+    static final String OK = "OK";
+
+    /** Return the port the server listens on. */
+    static int port() {
+        return Integer.getInteger("net.cscott.jdoctest.server.port",
+                                  DEFAULT_PORT);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java "+JDoctestClient.class.getName()+
+                               " <test file or dir>... | -stop");
+            System.exit(2);
+        }
+        Socket s;
+        try {
+            s = new Socket(InetAddress.getByName(null), port());
+        } catch (ConnectException e) {
+            System.err.println("No JDoctest server on port "+port()+
+                               "; start one with java "+
+                               "net.cscott.jdoctest.JDoctestServer"+
+                               " <class path>");
+            System.exit(2);
+            return;
+        }
+        String last = null;
+        try {
+            PrintWriter out = new PrintWriter
+                (new OutputStreamWriter(s.getOutputStream(), "utf-8"));
+            if (args.length == 1 && args[0].equals("-stop")) {
+                out.println(STOP);
+            } else {
+                out.println(RUN);
+                for (String a : args)
+                    out.println(new File(a).getAbsolutePath());
+                out.println();
+            }
+            out.flush();
+            BufferedReader in = new BufferedReader
+                (new InputStreamReader(s.getInputStream(), "utf-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                last = line;
+            }
+        } finally {
+            s.close();
+        }
+        System.exit((last != null && last.startsWith(OK)) ? 0 : 1);
+    }
+}
@@ -0,0 +1,48 @@
+package net.cscott.jdoctest;
+
+import com.sun.javadoc.DocErrorReporter;
+import com.sun.javadoc.LanguageVersion;
+import com.sun.javadoc.RootDoc;
+import com.sun.tools.doclets.standard.Standard;
+
+/**
+ * A doclet which evaluates all of the doctests in parallel and then hands
+ * off to the standard HTML doclet.  The {@link JDoctest} taglet must still
+ * be registered; it typesets and reports the precomputed results in the
+ * usual order.  Use it like this:
+ * <pre>
+ * javadoc -doclet net.cscott.jdoctest.JDoctestDoclet \
+ *         -docletpath lib/jdoctest/jdoctest.jar:lib/jdoctest/js.jar:bin \
+ *         -taglet net.cscott.jdoctest.JDoctest \
+ *         -tagletpath lib/jdoctest/jdoctest.jar:lib/jdoctest/js.jar:bin \
+ *         ...
+ * </pre>
+ * The number of worker threads defaults to the number of available
+ * processors; set the {@code net.cscott.jdoctest.threads} property to
+ * change it.
+ * @author C. Scott Ananian
+ */
+public class JDoctestDoclet {
+    /** Evaluate all the doctests, then generate the documentation. */
+    public static boolean start(RootDoc root) {
+        Prescan.start(root, DoctestScope.threads());
+        try {
+            return Standard.start(root);
+        } finally {
+            Prescan.finish();
+        }
+    }
+    /** Delegate option processing to the standard doclet. */
+    public static int optionLength(String option) {
+        return Standard.optionLength(option);
+    }
+    /** Delegate option processing to the standard doclet. */
+    public static boolean validOptions(String[][] options,
+                                       DocErrorReporter reporter) {
+        return Standard.validOptions(options, reporter);
+    }
+    /** Return the language version supported by the standard doclet. */
+    public static LanguageVersion languageVersion() {
+        return Standard.languageVersion();
+    }
+}
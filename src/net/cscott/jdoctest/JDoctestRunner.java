@@ -23,7 +23,9 @@ import org.junit.runners.model.Statement;
  * The <code>JDoctestRunner</code> runs doctests generated from a single given
  * class.  Just annotate the class {@code @RunWith(value=JDoctestRunner.class)}.
  * Add a {@code @SrcRoot(value="foo/bar")} if the source files for your class
- * live someplace other than "src".
+ * live someplace other than "src".  If the doctests are split into shards
+ * (see {@link Shards}), the class has no tests unless its source file
+ * belongs to the current shard.
  */
 public class JDoctestRunner extends Suite {
         private final String name;
@@ -37,19 +39,26 @@ public class JDoctestRunner extends Suite {
 	    public String value();
 	}
 
-	private class JDoctestRunnerForFile extends
+	static class JDoctestRunnerForFile extends
 			BlockJUnit4ClassRunner {
 	        private final Class<?> parentType;
 	        private final File testFile;
+	        private final JavadocJUnitTestBridge.Batch batch;
 		JDoctestRunnerForFile(Class<?> type, File testFile) throws InitializationError {
+			this(type, testFile, null);
+		}
+		JDoctestRunnerForFile(Class<?> type, File testFile,
+				      JavadocJUnitTestBridge.Batch batch) throws InitializationError {
 			super(JavadocJUnitTestBridge.class);
 			this.parentType = type;
 			this.testFile = testFile;
+			this.batch = batch;
+			if (batch != null) batch.add(testFile);
 		}
 
 		@Override
 		public Object createTest() throws Exception {
-		    return new JavadocJUnitTestBridge(parentType, testFile);
+		    return new JavadocJUnitTestBridge(parentType, testFile, batch);
 		}
 
 		@Override
@@ -82,7 +91,13 @@ public class JDoctestRunner extends Suite {
 		super(null, Collections.<Runner>emptyList());
 		this.name = klass.getName();
 		String srcRoot = getSrcRoot(klass);
-		// not find filename of source file for this class
+		File f = sourceFile(srcRoot, klass);
+		if (Shards.contains(f))
+		    runners.add(new JDoctestRunnerForFile(klass, f));
+	}
+	/** Find the source file for the given class beneath srcRoot. */
+	static File sourceFile(String srcRoot, Class<?> klass) {
+		// now find filename of source file for this class
 		Class<?> base = klass;
                 while (base.getEnclosingClass() != null)
                     base = base.getEnclosingClass();
@@ -93,7 +108,7 @@ public class JDoctestRunner extends Suite {
 		srcPath = new File(srcPath, base.getSimpleName()+".java");
 		if (!srcPath.isFile())
 		    fail("Can't find source for "+klass+" at "+srcPath);
-		runners.add(new JDoctestRunnerForFile(klass, srcPath));
+		return srcPath;
 	}
 	@Override
 	protected String getName() {
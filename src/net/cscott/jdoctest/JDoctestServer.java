@@ -0,0 +1,229 @@
+package net.cscott.jdoctest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+
+/**
+ * A long-lived process which reruns emitted doctests on request, so that
+ * the JVM, Rhino, and the JDoctest caches stay warm between runs.  Start
+ * it with the class path of the project under test (which must
+ * <em>not</em> also be on the server's own class path):
+ * <pre>
+ * java -cp lib/jdoctest/jdoctest.jar:lib/jdoctest/js.jar:lib/jdoctest/junit.jar \
+ *      net.cscott.jdoctest.JDoctestServer bin
+ * </pre>
+ * and then run tests with the {@link JDoctestClient}.  The server only
+ * listens on the loopback interface, on the port given by the
+ * {@code net.cscott.jdoctest.server.port} property (the client must use
+ * the same one).
+ * <p>
+ * Before each run the server fingerprints the project class path, as the
+ * {@link ResultCache} does.  If any class file or jar has changed, the
+ * project classes are loaded again by a fresh class loader, and every
+ * cache which might refer to the old classes is cleared.  Requests are
+ * handled one at a time.
+ * <p>
+ * Tests are run exactly as {@link RerunJDoctests} runs them, in the
+ * context {@link JsJUnitTestBridge} enters, so that a test passes in the
+ * server if and only if it passes in a fresh JVM.  That context's
+ * application class loader is set to the {@link ClassLookupCache} of the
+ * project classes.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   The project classes are only reloaded when they change:
+ *   js> var dir = java.io.File.createTempFile("jdoctest", ".d")
+ *   js> dir["delete"]() && dir.mkdir()
+ *   true
+ *   js> var reloads = 0
+ *   js> var server = new JDoctestServer(dir.getPath(),
+ *     >   new java.lang.Runnable({ run: function() { reloads++; } }))
+ *   js> var l = server.loader(); server.loader() === l
+ *   true
+ *   js> reloads
+ *   0
+ *   js> var f = new java.io.File(dir, "Foo.class"); f.createNewFile()
+ *   true
+ *   js> server.loader() === l
+ *   false
+ *   js> reloads
+ *   1
+ *   js> f["delete"]() && dir["delete"]()
+ *   true
+ */
+public class JDoctestServer {
+    /** Forgets everything which might refer to the old project classes,
+     *  when they are reloaded. */
+    static final Runnable CLEAR_CACHES = new Runnable() {
+        public void run() {
+            System.err.println("JDoctest server: reloading project classes");
+            SharedClassCache.clear();
+            ScriptCache.clear();
+            DoctestScope.reset();
+        }
+    };
+
+    private final URL[] classPath;
+    private final Runnable onReload;
+    private String fingerprint = null;
+    private ClassLoader loader = null;
+
+    /** Create a server for the project with the given class path. */
+    JDoctestServer(String classPath) {
+        this(classPath, CLEAR_CACHES);
+    }
+    /** Create a server for the project with the given class path, which
+     *  runs <code>onReload</code> whenever the project classes have
+     *  changed and are about to be loaded again. */
+    JDoctestServer(String classPath, Runnable onReload) {
+        this.onReload = onReload;
+        String[] entries = classPath.split(File.pathSeparator);
+        this.classPath = new URL[entries.length];
+        for (int i=0; i<entries.length; i++) {
+            try {
+                this.classPath[i] = new File(entries[i]).toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Bad class path entry "+
+                                                   entries[i]);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java "+JDoctestServer.class.getName()+
+                               " <project class path>");
+            System.exit(2);
+        }
+        JDoctestServer server = new JDoctestServer(args[0]);
+        ServerSocket ss = new ServerSocket
+            (JDoctestClient.port(), 50, InetAddress.getByName(null));
+        System.err.println("JDoctest server listening on port "+
+                           ss.getLocalPort());
+        try {
+            while (true) {
+                Socket s = ss.accept();
+                try {
+                    if (!server.serve(s)) break;
+                } catch (IOException e) {
+                    System.err.println("WARNING: JDoctest request failed: "+
+                                       e);
+                } finally {
+                    s.close();
+                }
+            }
+        } finally {
+            ss.close();
+        }
+    }
+
+    /** Handle a single request, returning false if the server should
+     *  stop. */
+    private boolean serve(Socket s) throws IOException {
+        BufferedReader in = new BufferedReader
+            (new InputStreamReader(s.getInputStream(), "utf-8"));
+        PrintWriter out = new PrintWriter
+            (new OutputStreamWriter(s.getOutputStream(), "utf-8"));
+        try {
+            String command = in.readLine();
+            if (JDoctestClient.STOP.equals(command)) {
+                out.println(JDoctestClient.OK+" (server stopped)");
+                return false;
+            }
+            if (!JDoctestClient.RUN.equals(command)) {
+                out.println("Unknown request: "+command);
+                return true;
+            }
+            List<File> tests = new ArrayList<File>();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                File f = new File(line);
+                if (f.isDirectory())
+                    JsJUnitTestBridge.collectAllTests(f, tests);
+                else
+                    tests.add(f);
+            }
+            Collections.sort(tests, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return a.getPath().compareTo(b.getPath());
+                }
+            });
+            run(tests, out);
+            return true;
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Run the given tests, writing a report in the style of JUnit's
+     *  text runner to <code>out</code>. */
+    private void run(List<File> tests, PrintWriter out) {
+        long start = System.currentTimeMillis();
+        ClassLoader projectLoader = loader();
+        Thread thread = Thread.currentThread();
+        ClassLoader savedLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(projectLoader);
+        int failures = 0;
+        Context cx = JsJUnitTestBridge.enterContext();
+        try {
+            // JsJUnitTestBridge enters this same context for each test.
+            cx.setApplicationClassLoader(ClassLookupCache.get(projectLoader));
+            for (File test : tests) {
+                String fail = null;
+                try {
+                    JsJUnitTestBridge.runDoctest(test);
+                } catch (AssertionError e) {
+                    fail = String.valueOf(e.getMessage());
+                } catch (RuntimeException e) {
+                    fail = test+": "+e;
+                }
+                if (fail != null) {
+                    failures++;
+                    out.println(failures+") "+test);
+                    out.println(fail);
+                }
+            }
+        } finally {
+            Context.exit();
+            thread.setContextClassLoader(savedLoader);
+        }
+        out.println();
+        out.println("Time: "+(System.currentTimeMillis()-start)/1000.0);
+        out.println();
+        if (failures == 0) {
+            out.println(JDoctestClient.OK+" ("+tests.size()+" tests)");
+        } else {
+            out.println("FAILURES!!!");
+            out.println("Tests run: "+tests.size()+",  Failures: "+failures);
+        }
+    }
+
+    /** Return the class loader for the project classes, making a new one
+     *  if they have changed since the last run. */
+    synchronized ClassLoader loader() {
+        String fp = ResultCache.fingerprint(classPath);
+        if (loader != null && fp.equals(fingerprint))
+            return loader;
+        if (loader != null)
+            onReload.run();
+        loader = new URLClassLoader
+            (classPath, JDoctestServer.class.getClassLoader());
+        fingerprint = fp;
+        return loader;
+    }
+}
@@ -0,0 +1,122 @@
+package net.cscott.jdoctest;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.runner.Runner;
+import org.junit.runners.Suite;
+
+/**
+ * The <code>JDoctestSuite</code> runs the doctests from a number of
+ * classes using a single javadoc invocation, which is much faster than
+ * running {@link JDoctestRunner} on each class separately.  Each class
+ * still gets its own test result.  List the classes with
+ * {@code @SuiteClasses}, and/or whole packages with {@code @Packages}:
+ * <pre>
+ * &#64;RunWith(value=JDoctestSuite.class)
+ * &#64;SuiteClasses(value={Foo.class, Bar.class})
+ * &#64;JDoctestSuite.Packages(value={"com.example.baz"})
+ * public class AllDoctests { }
+ * </pre>
+ * As with {@link JDoctestRunner}, add a {@code @SrcRoot(value="foo/bar")}
+ * if your source files live someplace other than "src".
+ */
+public class JDoctestSuite extends Suite {
+        private final String name;
+	/**
+	 * Annotation naming packages whose source files should all be
+	 * included in the suite.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public static @interface Packages {
+	    public String[] value();
+	}
+
+	private final ArrayList<Runner> runners= new ArrayList<Runner>();
+
+	/**
+	 * Only called reflectively. Do not use programmatically.
+	 */
+	public JDoctestSuite(Class<?> klass) throws Throwable {
+		super(null, Collections.<Runner>emptyList());
+		this.name = klass.getName();
+		String srcRoot = getSrcRoot(klass);
+		JavadocJUnitTestBridge.Batch batch =
+		    new JavadocJUnitTestBridge.Batch();
+		List<Class<?>> found = new ArrayList<Class<?>>();
+		List<File> files = new ArrayList<File>();
+		SuiteClasses classes = klass.getAnnotation(SuiteClasses.class);
+		if (classes != null)
+		    for (Class<?> c : classes.value()) {
+			found.add(c);
+			files.add(JDoctestRunner.sourceFile(srcRoot, c));
+		    }
+		Packages packages = klass.getAnnotation(Packages.class);
+		if (packages != null)
+		    for (String pkg : packages.value())
+			addPackage(klass, srcRoot, pkg, found, files);
+		// only run the files belonging to this shard.
+		Set<File> shard = Shards.select(files);
+		for (int i=0; i<files.size(); i++)
+		    if (shard.contains(files.get(i)))
+			runners.add(new JDoctestRunner.JDoctestRunnerForFile
+				    (found.get(i), files.get(i), batch));
+	}
+	private void addPackage(Class<?> klass, String srcRoot, String pkg,
+				List<Class<?>> found, List<File> sources)
+	    throws Throwable {
+		File srcPath = new File(srcRoot);
+		for (String d : pkg.split("[.]"))
+		    srcPath = new File(srcPath, d);
+		File[] files = srcPath.listFiles();
+		if (files == null)
+		    fail("Can't find source for package "+pkg+" at "+srcPath);
+		Arrays.sort(files);
+		for (File f : files) {
+		    if (!f.getName().endsWith(".java")) continue;
+		    // blame failures on the class defined by this file, if
+		    // we can find it.
+		    Class<?> c = klass;
+		    try {
+			c = Class.forName(pkg+"."+
+					  f.getName().replaceFirst("[.]java$", ""));
+		    } catch (ClassNotFoundException e) { /* ignore */ }
+		    found.add(c);
+		    sources.add(f);
+		}
+	}
+	@Override
+	protected String getName() {
+	        return this.name;
+	}
+
+	@Override
+	protected List<Runner> getChildren() {
+		return runners;
+	}
+
+        private String getSrcRoot(Class<?> klass) {
+            JDoctestRunner.SrcRoot annotation=
+                klass.getAnnotation(JDoctestRunner.SrcRoot.class);
+            if (annotation == null)
+                // default value
+                return defaultSrcRoot();
+            return annotation.value();
+        }
+
+	/** Override this method to change the default path to your sources. */
+	protected String defaultSrcRoot() {
+		return "src";
+	}
+}
@@ -4,6 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,14 +18,21 @@ import org.junit.Test;
 /** JUnit test bridge to generate and run the doc tests from a specific
  *  Java source file. */
 /* basic command to make things go:
- * javadoc -notree -noindex -nohelp -nonavbar -notimestamp -private -d /tmp/foo -quiet -taglet net.cscott.jdoctest.JDoctest -tagletpath jdoctest-1.4.jar:lib/rhino1_7R5pre/js.jar:bin -J-ea -classpath bin:/home/cananian/jdk1.6.0_11/lib/tools.jar:lib/rhino1_7R5pre/js.jar:lib/junit-4.6.jar src/net/cscott/jdoctest/JDoctest.java
+ * javadoc -private -quiet -doclet net.cscott.jdoctest.JDoctestCheckDoclet -docletpath jdoctest-1.4.jar:lib/rhino1_7R5pre/js.jar:bin -J-ea -classpath bin:/home/cananian/jdk1.6.0_11/lib/tools.jar:lib/rhino1_7R5pre/js.jar:lib/junit-4.6.jar src/net/cscott/jdoctest/JDoctest.java
  */
 public class JavadocJUnitTestBridge {
     public final Class<?> klass;
     public final File sourceFile;
+    private final Batch batch;
     public JavadocJUnitTestBridge(Class<?> klass, File sourceFile) {
+        this(klass, sourceFile, null);
+    }
+    /** Create a test bridge whose source file is processed as part of
+     *  the given batch. */
+    JavadocJUnitTestBridge(Class<?> klass, File sourceFile, Batch batch) {
         this.klass = klass;
         this.sourceFile = sourceFile;
+        this.batch = batch;
     }
     /* stand-alone! (for testing) */
     public static void main(String[] args) throws IOException {
@@ -29,7 +42,17 @@ public class JavadocJUnitTestBridge {
 
     @Test
     public void runDoctest() throws IOException {
-        runDoctest(this.klass, this.sourceFile);
+        long start = System.currentTimeMillis();
+        try {
+            if (batch == null)
+                runDoctest(this.klass, this.sourceFile);
+            else
+                checkErrors(this.klass, this.sourceFile,
+                            batch.errorsFor(this.sourceFile));
+        } finally {
+            Shards.record(this.sourceFile,
+                          System.currentTimeMillis() - start);
+        }
     }
 
     /** Helper class to bundle up a StringWriter as a PrintWriter. */
@@ -41,37 +64,39 @@ public class JavadocJUnitTestBridge {
     }
     // --- generic implementation, for reuse ---
     public static void runDoctest(Class<?> klass, File sourceFile) throws IOException {
-        // Make a temp dir
-        File tmpDir = TemporaryDirectory.createTempDirectory("jdoctest.");
-        try {
-            runDoctestWithTmpdir(klass, sourceFile, tmpDir);
-        } finally {
-            // Remove temporary output directory
-            TemporaryDirectory.deleteAll(tmpDir);
-        }
+        List<File> sourceFiles = new ArrayList<File>();
+        sourceFiles.add(sourceFile);
+        checkErrors(klass, sourceFile, runJavadoc(sourceFiles));
     }
-    static void runDoctestWithTmpdir(Class<?> klass, File sourceFile, File tmpDir) {
+    /** Run javadoc (and thus the doctests) on the given source files,
+     *  returning the text of any errors reported.  We use
+     *  {@link JDoctestCheckDoclet}, so no documentation is written. */
+    static String runJavadoc(List<File> sourceFiles) {
         SPWriter errWriter = new SPWriter(),
                  warnWriter = new SPWriter(),
                  noticeWriter = new SPWriter();
-        String[] args = {
-                "-private", "-d", tmpDir.getPath(),
-                "-notree", "-noindex", "-nohelp", "-nonavbar", "-notimestamp",
-                 "-quiet",
-                 "-taglet", JDoctest.class.getName(),
-                 //"-tagletpath", tagletPath, "-J-ea", //XXX necessary?
-                 //"-classpath", classPath, // XXX necessary?
-                 sourceFile.getPath() };
+        List<String> args = new ArrayList<String>();
+        args.add("-private");
+        args.add("-quiet");
+        for (File f : sourceFiles)
+            args.add(f.getPath());
         // provide annotation or some way to add additional arguments
         // or class path entries? (maybe for taglet path?)
         int status = com.sun.tools.javadoc.Main.execute(
                 JavadocJUnitTestBridge.class.getSimpleName(),
                 errWriter, warnWriter, noticeWriter,
-                com.sun.tools.doclets.standard.Standard.class.getName(),
-                args);
+                JDoctestCheckDoclet.class.getName(),
+                // load the doclet with our class loader, so that it shares
+                // our classes (and their static state)
+                JavadocJUnitTestBridge.class.getClassLoader(),
+                args.toArray(new String[args.size()]));
         String err = errWriter.toString(),
                warn = warnWriter.toString(),
                notice = noticeWriter.toString();
+        return err;
+    }
+    /** Throw a {@link DoctestErrors} if there were any errors. */
+    static void checkErrors(Class<?> klass, File sourceFile, String err) {
         // check status/contents of errWriter/warnWriter/noticeWriter
         if (err.length() > 0) {
             // try to identify the line number
@@ -79,17 +104,17 @@ public class JavadocJUnitTestBridge {
             Matcher m = errorLine.matcher(err);
             if (m.find())
                 lineNum = Integer.valueOf(m.group(1));
-            throw new DoctestFailure(err, klass, sourceFile, lineNum);
+            throw new DoctestErrors(err, klass, sourceFile, lineNum);
         }
     }
     private static final Pattern errorLine =
         Pattern.compile("^.*[.]java:(\\d+): err",
                         Pattern.MULTILINE|Pattern.CASE_INSENSITIVE);
-    private static class DoctestFailure extends Error {
+    private static class DoctestErrors extends Error {
         private static final long serialVersionUID = -7687329363469162375L;
 
-        DoctestFailure(String msg, Class<?> klass,
-                       File sourceFile, int lineNum) {
+        DoctestErrors(String msg, Class<?> klass,
+                      File sourceFile, int lineNum) {
             super(msg);
             StackTraceElement[] stackTrace = new StackTraceElement[] {
                     new StackTraceElement(klass.getCanonicalName(), "<init>",
@@ -98,4 +123,49 @@ public class JavadocJUnitTestBridge {
             this.setStackTrace(stackTrace);
         }
     }
+
+    /**
+     * A set of source files whose doctests are all run in a single
+     * javadoc invocation, the first time the results for any of them are
+     * needed.  The errors reported by javadoc are then split back out by
+     * source file.
+     */
+    static class Batch {
+        private final Set<File> sourceFiles = new LinkedHashSet<File>();
+        private Map<String,StringBuilder> errors = null;
+        /** Add a source file to this batch. */
+        synchronized void add(File sourceFile) {
+            assert errors == null : "batch has already been run";
+            sourceFiles.add(sourceFile);
+        }
+        /** Return the errors reported for the given source file, running
+         *  the batch if necessary. */
+        synchronized String errorsFor(File sourceFile) {
+            if (errors == null)
+                errors = split(runJavadoc(new ArrayList<File>(sourceFiles)));
+            StringBuilder sb = errors.get(sourceFile.getPath());
+            // errors which aren't attributable to any source file are
+            // reported for every file.
+            String general = errors.get(null).toString();
+            return (sb == null) ? general : general + sb;
+        }
+        private Map<String,StringBuilder> split(String err) {
+            Map<String,StringBuilder> result =
+                new HashMap<String,StringBuilder>();
+            StringBuilder current = new StringBuilder();
+            result.put(null, current);
+            for (File f : sourceFiles)
+                result.put(f.getPath(), new StringBuilder());
+            for (String line : err.split("(?<=\n)")) {
+                Matcher m = errorSource.matcher(line);
+                if (m.find())
+                    current = result.containsKey(m.group(1)) ?
+                        result.get(m.group(1)) : result.get(null);
+                current.append(line);
+            }
+            return result;
+        }
+    }
+    private static final Pattern errorSource =
+        Pattern.compile("^(.*[.]java):\\d+: ");
 }
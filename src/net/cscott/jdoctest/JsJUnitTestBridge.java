@@ -5,17 +5,23 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.tools.shell.Global;
 
 /** JUnit test bridge to re-run the doc tests in the specific javascript file. */
 public class JsJUnitTestBridge {
+    private static final ContextFactory FACTORY = new Budget.Factory();
     public final File testFile;
     public JsJUnitTestBridge(File testFile) { this.testFile = testFile; }
     /* stand-alone! */
@@ -35,37 +41,65 @@ public class JsJUnitTestBridge {
     }
 
     public static void runDoctest(File testFile) {
+        Timings t = new Timings();
         String testText;
         try {
-            testText = readFully(testFile);
+            testText = readTest(testFile);
         } catch (IOException e) {
             fail("Can't read "+testFile);
             return;
         }
-        runDoctest(testFile.getPath(), testText);
+        t.lap(Timings.Phase.READ);
+        long start = System.currentTimeMillis();
+        try {
+            runDoctest(testFile.getPath(), testText, t);
+        } finally {
+            Shards.record(testFile, System.currentTimeMillis() - start);
+            // emitted tests start with the position of the original.
+            Matcher m = P_source_position.matcher(testText);
+            boolean found = m.find();
+            File pkgDir = testFile.getParentFile();
+            t.record((pkgDir == null) ? null : pkgDir.getName(),
+                     found ? m.group(1) : testFile.getPath(),
+                     found ? Integer.parseInt(m.group(2)) : 1,
+                     0, testFile.getPath(), false);
+        }
     }
+    private static final Pattern P_source_position =
+        Pattern.compile("\\A(.*):(\\d+)\n");
 
     public static void runDoctest(String testSource, String testText) {
+        runDoctest(testSource, testText, new Timings());
+    }
+    private static void runDoctest(String testSource, String testText,
+                                   Timings t) {
         // Run each one in turn.
-        Context cx = Context.enter();
+        Context cx = enterContext();
         try {
-            cx.setLanguageVersion(Context.VERSION_1_7); // js 1.7 by default
+            t.lap(Timings.Phase.CONTEXT);
             boolean expect_fail = Patterns.expectFail(testText);
-            Global global = new Global(); // this is also a scope.
-            global.init(cx);
+            Global global = DoctestScope.global(cx);
+            Scriptable scope = DoctestScope.newScope(cx, global);
+            t.lap(Timings.Phase.SCOPE);
             // okay, evaluate the doctest.
             // if the tests fail, we will throw an exception here.
             String fail=null;
             try {
                 @SuppressWarnings("unused")
-                int testsRun = global.runDoctest(cx, global, testText,
-                                                 testSource, 1);
+                int testsRun = DoctestSession.run
+                    (cx, global, scope, testText, testSource, 1,
+                     CompiledDoctests.scriptsFor(testSource, testText));
             } catch (AssertionError e) {
                 fail = e.getMessage();
                 if (fail==null) fail="<unknown assertion failure>";
             } catch (RhinoException e) {
                 fail = e.getMessage();
                 if (fail==null) fail="<unknown failure>";
+            } catch (Budget.Exceeded e) {
+                // never an expected failure.
+                fail(testSource+": "+e.getMessage());
+            } finally {
+                t.lap(Timings.Phase.RUN);
             }
             if (expect_fail) {
                 fail = (fail!=null) ? null :
@@ -78,30 +112,68 @@ public class JsJUnitTestBridge {
         }
     }
 
+    /** Enter the context that emitted tests are rerun (and compiled)
+     *  in.  Its factory enforces the {@link Budget} of each test. */
+    static Context enterContext() {
+        Context cx = FACTORY.enterContext();
+        cx.setLanguageVersion(Context.VERSION_1_7); // js 1.7 by default
+        return cx;
+    }
+
     public static void collectTestsFor(File rootDir, Class<?> testClass,
                                        List<File> results) {
         // XXX implement me
     }
 
+    /** Add all the tests beneath the given directory to
+     *  <code>results</code>.  If the directory holds a {@link TestBundle},
+     *  the tests in the bundle are listed instead. */
     public static void collectAllTests(File testDir, List<File> results) {
         if (!testDir.isDirectory())
             fail("JDoctest test directory "+testDir+" does not exist");
+        TestBundle bundle;
+        try {
+            bundle = TestBundle.open(testDir);
+        } catch (IOException e) {
+            fail("Can't read "+e.getMessage());
+            return;
+        }
+        if (bundle == null) {
+            collectTestFiles(testDir, results);
+            return;
+        }
+        for (int i=0, n=bundle.size(); i<n; i++)
+            results.add(new File(testDir, bundle.name(i)));
+    }
+    private static void collectTestFiles(File testDir, List<File> results) {
         for (File f : testDir.listFiles()) {
             if (f.isDirectory())
-                collectAllTests(f, results);
+                collectTestFiles(f, results);
             else if (f.getName().endsWith(".js"))
                 results.add(f);
         }
     }
 
-    private static String readFully(File f) throws IOException {
+    /** Return the text of the given test, from its bundle if it is in
+     *  one, or else from the file itself. */
+    static String readTest(File f) throws IOException {
+        String text = TestBundle.lookup(f);
+        return (text != null) ? text : readFully(f);
+    }
+
+    static String readFully(File f) throws IOException {
         StringBuilder sb = new StringBuilder();
         char[] buf = new char[8192];
-        Reader r = new InputStreamReader(new FileInputStream(f), "utf-8");
-        while (true) {
-            int chars = r.read(buf);
-            if (chars<0) break;
-            sb.append(buf, 0, chars);
+        InputStream in = new FileInputStream(f);
+        try {
+            Reader r = new InputStreamReader(in, "utf-8");
+            while (true) {
+                int chars = r.read(buf);
+                if (chars<0) break;
+                sb.append(buf, 0, chars);
+            }
+        } finally {
+            in.close();
         }
         return sb.toString();
     }
@@ -0,0 +1,182 @@
+package net.cscott.jdoctest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.Parameterized;
+import org.junit.runners.model.Statement;
+import org.mozilla.javascript.Context;
+
+/**
+ * A version of JUnit's {@link Parameterized} runner which runs the tests
+ * for each set of parameters in parallel.  This is the runner used by
+ * {@link RerunJDoctests}, which has one set of parameters for each
+ * emitted doctest.
+ * <p>
+ * The tests are run on a pool of worker threads; the number of threads
+ * defaults to the number of processors, and can be set with the
+ * {@code net.cscott.jdoctest.threads} property.  Each worker enters a
+ * single Rhino {@link Context} which it keeps for all of its tests.  The
+ * results of each test are collected as it runs, and reported to JUnit
+ * from the calling thread, in the same order as {@link Parameterized}
+ * would report them.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Results are reported in order, whichever thread ran them:
+ *   js> importPackage(Packages.org.junit.runner)
+ *   js> importPackage(Packages.org.junit.runner.notification)
+ *   js> function child(name, ok) {
+ *     >   var d = Description.createSuiteDescription(name, []);
+ *     >   return new JavaAdapter(Runner, {
+ *     >     getDescription: function() { return d; },
+ *     >     run: function(n) {
+ *     >       n.fireTestStarted(d);
+ *     >       if (!ok) n.fireTestFailure(new Failure(d, new java.lang.Exception()));
+ *     >       n.fireTestFinished(d);
+ *     >     } });
+ *     > }
+ *   js> var children = new java.util.ArrayList(), expected = []
+ *   js> while (children.size() < 40) {
+ *     >   var name = "t"+children.size(), ok = (children.size() % 7 != 3);
+ *     >   expected.push("+"+name);
+ *     >   if (!ok) expected.push("!"+name);
+ *     >   expected.push("-"+name);
+ *     >   children.add(child(name, ok));
+ *     > }
+ *   true
+ *   js> var events = []
+ *   js> var notifier = new RunNotifier()
+ *   js> notifier.addListener(new JavaAdapter(RunListener, {
+ *     >   testStarted: function(d) { events.push("+"+d.getDisplayName()); },
+ *     >   testFailure: function(f) {
+ *     >     events.push("!"+f.getDescription().getDisplayName()); },
+ *     >   testFinished: function(d) { events.push("-"+d.getDisplayName()); }
+ *     > }))
+ *   js> ParallelParameterized.runChildren(children, notifier, 4)
+ *   js> events.join(" ") == expected.join(" ")
+ *   true
+ */
+public class ParallelParameterized extends Parameterized {
+    /** Only called reflectively; do not use. */
+    public ParallelParameterized(Class<?> klass) throws Throwable {
+        super(klass);
+    }
+
+    protected Statement childrenInvoker(final RunNotifier notifier) {
+        return new Statement() {
+            public void evaluate() throws Throwable {
+                runChildren(getFilteredChildren(), notifier,
+                            DoctestScope.threads());
+            }
+        };
+    }
+
+    /** Run the given children on <code>threads</code> worker threads,
+     *  reporting their results to <code>notifier</code> in order. */
+    static void runChildren(List<Runner> children, RunNotifier notifier,
+                            int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool
+            (threads, new ContextThreadFactory());
+        try {
+            List<Future<RecordingNotifier>> results =
+                new ArrayList<Future<RecordingNotifier>>();
+            for (final Runner child : children) {
+                results.add(pool.submit(new Callable<RecordingNotifier>() {
+                    public RecordingNotifier call() {
+                        RecordingNotifier rn = new RecordingNotifier();
+                        child.run(rn);
+                        return rn;
+                    }
+                }));
+            }
+            // report the results in order, as they become available.
+            for (Future<RecordingNotifier> f : results) {
+                try {
+                    f.get().replay(notifier);
+                } catch (ExecutionException e) {
+                    // the child runner should have caught all exceptions
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Creates worker threads which each hold a Rhino context while
+     *  they run. */
+    private static class ContextThreadFactory implements ThreadFactory {
+        private int count = 0;
+        public synchronized Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    JsJUnitTestBridge.enterContext();
+                    try {
+                        r.run();
+                    } finally {
+                        Context.exit();
+                    }
+                }
+            }, "JDoctest rerun "+(++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** A {@link RunNotifier} which records the events of a single test,
+     *  so they can be replayed later on another notifier. */
+    private static class RecordingNotifier extends RunNotifier {
+        private enum Kind { STARTED, FAILURE, ASSUMPTION_FAILED, IGNORED,
+                            FINISHED };
+        private final List<Kind> kinds = new ArrayList<Kind>();
+        private final List<Object> args = new ArrayList<Object>();
+
+        private void record(Kind kind, Object arg) {
+            kinds.add(kind);
+            args.add(arg);
+        }
+        public void fireTestStarted(Description d) {
+            record(Kind.STARTED, d);
+        }
+        public void fireTestFailure(Failure f) {
+            record(Kind.FAILURE, f);
+        }
+        public void fireTestAssumptionFailed(Failure f) {
+            record(Kind.ASSUMPTION_FAILED, f);
+        }
+        public void fireTestIgnored(Description d) {
+            record(Kind.IGNORED, d);
+        }
+        public void fireTestFinished(Description d) {
+            record(Kind.FINISHED, d);
+        }
+
+        void replay(RunNotifier notifier) {
+            for (int i=0; i<kinds.size(); i++) {
+                Object arg = args.get(i);
+                switch (kinds.get(i)) {
+                case STARTED:
+                    notifier.fireTestStarted((Description) arg); break;
+                case FAILURE:
+                    notifier.fireTestFailure((Failure) arg); break;
+                case ASSUMPTION_FAILED:
+                    notifier.fireTestAssumptionFailed((Failure) arg); break;
+                case IGNORED:
+                    notifier.fireTestIgnored((Description) arg); break;
+                case FINISHED:
+                    notifier.fireTestFinished((Description) arg); break;
+                }
+            }
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package net.cscott.jdoctest;
 
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.mozilla.javascript.EvaluatorException;
+
 /** Split out some regexp processing so it can be reused in the JUnit test
  * runner.
  * @author C. Scott Ananian
@@ -15,4 +18,49 @@ class Patterns {
     }
     private static final Pattern P_expect_fail =
         Pattern.compile("\\bEXPECT\\s+FAIL\\b");
+
+    /** Return the timeout given by <code>TIMEOUT &lt;n&gt; MS</code> (or
+     *  <code>S</code>) in the description of the test, in milliseconds,
+     *  or -1 if there isn't one.  A timeout in seconds too long to give
+     *  in milliseconds is {@link Long#MAX_VALUE}.  See {@link Budget}.
+     * @throws EvaluatorException if the number is too large. */
+    static long timeoutMillis(String test_text) {
+        Matcher m = P_timeout.matcher(description(test_text));
+        if (!m.find()) return -1;
+        long n = parse(m.group(0), m.group(1));
+        if (!m.group(2).equalsIgnoreCase("s")) return n;
+        return (n > Long.MAX_VALUE/1000) ? Long.MAX_VALUE : n*1000;
+    }
+    private static final Pattern P_timeout =
+        Pattern.compile("\\bTIMEOUT\\s+(\\d+)\\s*(MS|S|ms|s)\\b");
+
+    /** Return the instruction limit given by
+     *  <code>MAX INSTRUCTIONS &lt;n&gt;</code> in the description of the
+     *  test, or -1 if there isn't one.  See {@link Budget}.
+     * @throws EvaluatorException if the number is too large. */
+    static long maxInstructions(String test_text) {
+        Matcher m = P_max_instructions.matcher(description(test_text));
+        return m.find() ? parse(m.group(0), m.group(1)) : -1;
+    }
+    private static final Pattern P_max_instructions =
+        Pattern.compile("\\bMAX\\s+INSTRUCTIONS\\s+(\\d+)\\b");
+
+    /** Parse the number in a limit, which the patterns ensure is made
+     *  of digits, but not that it fits in a long.  An error is thrown
+     *  as a {@link EvaluatorException} so that it is reported as the
+     *  failure of the doctest, instead of ending the run. */
+    private static long parse(String limit, String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            throw new EvaluatorException("Bad doctest limit: "+limit);
+        }
+    }
+
+    /** Return the description of a test: the text before its first
+     *  prompt. */
+    private static String description(String test_text) {
+        int i = test_text.indexOf("js>");
+        return (i < 0) ? test_text : test_text.substring(0, i);
+    }
 }
@@ -0,0 +1,213 @@
+package net.cscott.jdoctest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+import com.sun.javadoc.AnnotationTypeDoc;
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.DocErrorReporter;
+import com.sun.javadoc.PackageDoc;
+import com.sun.javadoc.RootDoc;
+import com.sun.javadoc.SourcePosition;
+import com.sun.javadoc.Tag;
+
+/**
+ * Evaluate all the doctests in a {@link RootDoc} on a pool of worker
+ * threads, before the standard doclet starts generating documentation.
+ * The standard doclet invokes the {@link JDoctest} taglet serially as it
+ * writes each page; the taglet then just looks up the precomputed
+ * results, and reports them in the usual (deterministic) order.
+ * <p>
+ * The doclet and the taglet are loaded by different class loaders, so
+ * the results are handed over in a map stored in the system properties,
+ * using only system classes.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   The workers' results are handed over through a map (normally the
+ *   system properties), and looked up by position and test text:
+ *   js> function pos(line) {
+ *     >   return new Packages.com.sun.javadoc.SourcePosition({
+ *     >     file: function() { return new java.io.File("Foo.java") },
+ *     >     line: function() { return line },
+ *     >     column: function() { return 0 },
+ *     >     toString: function() { return "Foo.java:"+line } });
+ *     > }
+ *   js> var jobs = new java.util.ArrayList()
+ *   js> jobs.add(new Prescan.Job(null, pos(1), "js> 1+1\n2"))
+ *   true
+ *   js> jobs.add(new Prescan.Job(null, pos(2), "js> 1+1\n3"))
+ *   true
+ *   js> Prescan.runAll(jobs, 2)
+ *   js> var store = new java.util.HashMap()
+ *   js> Prescan.publish(store, jobs, null)
+ *   js> Prescan.lookup(store, pos(1), "js> 1+1\n2").fail
+ *   null
+ *   js> Prescan.lookup(store, pos(2), "js> 1+1\n3").fail.expected
+ *   3
+ *   js> Prescan.lookup(store, pos(3), "js> 1+1\n2")
+ *   null
+ *   js> Prescan.lookup(store, pos(1), "js> 1+2\n3")
+ *   null
+ */
+class Prescan {
+    private Prescan() { }
+    private static final String RESULTS_KEY =
+        "net.cscott.jdoctest.prescan.results";
+    private static final String REPORTER_KEY =
+        "net.cscott.jdoctest.prescan.reporter";
+
+    /** Evaluate all the doctests in <code>root</code>, making the results
+     *  (and <code>root</code>, as an error reporter) available to the
+     *  taglet. */
+    static void start(RootDoc root, int nThreads) {
+        JDoctest.printVersion(root);
+        List<Job> jobs = new ArrayList<Job>();
+        for (Doc d : allDocs(root))
+            collect(d, jobs);
+        runAll(jobs, nThreads);
+        publish(System.getProperties(), jobs, root);
+    }
+    /** Store the results of the given (finished) jobs, and the given
+     *  error reporter (if not null), in <code>store</code>. */
+    static void publish(Map<Object,Object> store, List<Job> jobs,
+                        DocErrorReporter reporter) {
+        Map<String,Object[]> results = new ConcurrentHashMap<String,Object[]>();
+        for (Job job : jobs)
+            if (job.result != null)
+                results.put(key(job.sp, job.text), new Object[] {
+                    job.result.testsRun,
+                    (job.result.fail==null) ? null : job.result.fail.toArray(),
+                    job.result.overBudget, job.result.timings
+                });
+        store.put(RESULTS_KEY, results);
+        if (reporter != null)
+            store.put(REPORTER_KEY, reporter);
+    }
+    /** Discard the results of the last {@link #start} invocation, once
+     *  any tests emitted meanwhile have been written. */
+    static void finish() {
+        // wait for the taglet's emitted tests to be written.
+        TestWriter.flushAll();
+        System.getProperties().remove(RESULTS_KEY);
+        System.getProperties().remove(REPORTER_KEY);
+    }
+
+    /** Return the precomputed result for the given test, or null if
+     *  there isn't one. */
+    static DoctestResult lookup(SourcePosition sp, String test_text) {
+        return lookup(System.getProperties(), sp, test_text);
+    }
+    /** Return the result for the given test stored in
+     *  <code>store</code> by {@link #publish}, or null. */
+    static DoctestResult lookup(Map<?,?> store, SourcePosition sp,
+                                String test_text) {
+        Map<?,?> results = (Map<?,?>) store.get(RESULTS_KEY);
+        if (results == null) return null;
+        Object[] r = (Object[]) results.get(key(sp, test_text));
+        if (r == null) return null;
+        return new DoctestResult((Integer) r[0],
+                                 DoctestFailure.fromArray((String[]) r[1]),
+                                 (Boolean) r[2], (long[]) r[3]);
+    }
+    /** Return the error reporter for the current prescan, or null. */
+    static DocErrorReporter reporter() {
+        Object o = System.getProperties().get(REPORTER_KEY);
+        return (o instanceof DocErrorReporter) ? (DocErrorReporter) o : null;
+    }
+
+    private static String key(SourcePosition sp, String test_text) {
+        return sp + "\n" + test_text;
+    }
+
+    /** A single doctest to evaluate. */
+    static class Job {
+        final String packageName;
+        final SourcePosition sp;
+        final String text;
+        DoctestResult result = null;
+        Job(String packageName, SourcePosition sp, String text) {
+            this.packageName = packageName;
+            this.sp = sp;
+            this.text = text;
+        }
+    }
+
+    /** Return all the documented elements of <code>root</code> which
+     *  could hold a <code>@doc.test</code> tag: the overview, all the
+     *  classes and their members, and all the packages. */
+    static List<Doc> allDocs(RootDoc root) {
+        List<Doc> docs = new ArrayList<Doc>();
+        docs.add(root);
+        List<PackageDoc> pkgs = new ArrayList<PackageDoc>();
+        for (PackageDoc pd : root.specifiedPackages())
+            pkgs.add(pd);
+        for (ClassDoc cd : root.classes()) {
+            if (!pkgs.contains(cd.containingPackage()))
+                pkgs.add(cd.containingPackage());
+            docs.add(cd);
+            docs.addAll(Arrays.asList(cd.fields()));
+            docs.addAll(Arrays.asList(cd.enumConstants()));
+            docs.addAll(Arrays.asList(cd.constructors()));
+            docs.addAll(Arrays.asList(cd.methods()));
+            if (cd instanceof AnnotationTypeDoc)
+                docs.addAll(Arrays.asList(((AnnotationTypeDoc) cd).elements()));
+        }
+        docs.addAll(pkgs);
+        return docs;
+    }
+    private static void collect(Doc d, List<Job> jobs) {
+        Tag[] tags = d.tags("doc.test");
+        if (tags.length == 0) return;
+        String pkg = JDoctest.getPackage(d);
+        for (Tag t : tags)
+            jobs.add(new Job(pkg, t.position(),
+                             JDoctest.stripIndentation(t.text())));
+    }
+
+    /** Run the given jobs on <code>nThreads</code> worker threads. */
+    static void runAll(final List<Job> jobs, int nThreads) {
+        final ContextFactory contextFactory =
+            new JDoctest.JDoctestContextFactory();
+        final AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[Math.min(nThreads, jobs.size())];
+        for (int i=0; i<workers.length; i++) {
+            workers[i] = new Thread("jdoctest-worker-"+i) {
+                public void run() {
+                    // each worker keeps its own context for all its jobs.
+                    contextFactory.enterContext();
+                    try {
+                        int j;
+                        while ((j = next.getAndIncrement()) < jobs.size()) {
+                            Job job = jobs.get(j);
+                            // if this throws, the result stays null and
+                            // the taglet will rerun the test itself.
+                            job.result = JDoctest.execute
+                                (contextFactory, job.packageName,
+                                 job.sp.file().getName(), job.sp.line(),
+                                 job.text);
+                        }
+                    } finally {
+                        Context.exit();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -4,9 +4,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.runner.RunWith;
-import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
 /**
@@ -17,11 +17,13 @@ import org.junit.runners.Parameterized.Parameters;
  * in "api/tests") override the listTests() class to invoke
  * {@link #listTests(String)} with the directory you set
  * {@code net.cscott.jdoctest.output} to. (Don't forget to make the
- * whole thing {@code @RunWith(value=Parameterized.class)} and tag your
- * overridden {@link #listTests()} with the {@code Parameters} annotation.)
+ * whole thing {@code @RunWith(value=ParallelParameterized.class)} and tag
+ * your overridden {@link #listTests()} with the {@code Parameters}
+ * annotation.)  The tests are run in parallel; see
+ * {@link ParallelParameterized}.
  * @author C. Scott Ananian
  */
-@RunWith(value = Parameterized.class)
+@RunWith(value = ParallelParameterized.class)
 public class RerunJDoctests extends JsJUnitTestBridge {
     public RerunJDoctests(String testFile) {
         super(new File(testFile));
@@ -32,14 +34,17 @@ public class RerunJDoctests extends JsJUnitTestBridge {
     public static Collection<Object[]> listTests() {
         return listTests("api/tests");
     }
-    /** List all the javascript tests found beneath the given directory. */
+    /** List all the javascript tests found beneath the given directory
+     *  (which belong to the current shard; see {@link Shards}). */
     public static Collection<Object[]> listTests(String testDir) {
         // find all the files underneath testDir
         List<File> tests = new ArrayList<File>();
         collectAllTests(new File(testDir), tests);
+        Set<File> shard = Shards.select(tests);
         List<Object[]> result = new ArrayList<Object[]>();
         for (File f : tests)
-            result.add(new Object[] { f.getPath() });
+            if (shard.contains(f))
+                result.add(new Object[] { f.getPath() });
         return result;
     }
 }
@@ -0,0 +1,261 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * A persistent on-disk cache of doctest results.  Set the
+ * {@code net.cscott.jdoctest.cache} property to a directory to enable it.
+ * Each result is keyed by a hash of the test text, the package prologue,
+ * the test's source position, and a fingerprint of the class files
+ * visible to the doctests; if none of these have changed the stored
+ * result (including any failure message) is replayed instead of running
+ * the test again.  Set {@code net.cscott.jdoctest.cache.refresh} to
+ * {@code true} to force all tests to be rerun (the cache is still
+ * updated with the new results).
+ * <p>
+ * The number of cache hits and misses is printed when the JVM exits.
+ * @author C. Scott Ananian
+ */
+class ResultCache {
+    private static ResultCache instance = null;
+
+    private final File dir;
+    private final boolean refresh;
+    private final String fingerprint;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private ResultCache(File dir, boolean refresh, String fingerprint) {
+        this.dir = dir;
+        this.refresh = refresh;
+        this.fingerprint = fingerprint;
+    }
+
+    /** Return the result cache, or null if caching is not enabled.  The
+     *  class files visible to the given context factory are fingerprinted
+     *  the first time this is called. */
+    static synchronized ResultCache get(ContextFactory contextFactory) {
+        if (instance != null) return instance;
+        String dirName = System.getProperty("net.cscott.jdoctest.cache");
+        if (dirName == null) return null;
+        final ResultCache cache = new ResultCache
+            (new File(dirName),
+             Boolean.getBoolean("net.cscott.jdoctest.cache.refresh"),
+             fingerprint(classLoader(contextFactory)));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                if (cache.hits.get() + cache.misses.get() > 0)
+                    System.err.println("JDoctest cache: "+cache);
+            }
+        });
+        instance = cache;
+        return cache;
+    }
+
+    /** The version of the format results are stored in; changing it
+     *  changes every key, so old entries are never misread. */
+    private static final String FORMAT = "2";
+
+    /** Return the cache key for the given doctest. */
+    String key(String packageName, String fileName, int line,
+               String test_text) {
+        MessageDigest md = newDigest();
+        update(md, Version.PACKAGE_STRING);
+        update(md, FORMAT);
+        update(md, fingerprint);
+        update(md, String.valueOf(DoctestScope.SHARED));
+        update(md, String.valueOf(JDoctest.prologue(packageName)));
+        update(md, fileName+":"+line);
+        update(md, normalize(test_text));
+        return hex(md.digest());
+    }
+
+    /** The names under which the fields of a {@link DoctestFailure} (in
+     *  the order of {@link DoctestFailure#toArray}) are stored. */
+    private static final String[] FAIL_FIELDS = {
+        "message", "input", "expected", "actual", "location", "html", "text"
+    };
+
+    /** Return the stored result for the given key, or null. */
+    DoctestResult lookup(String key) {
+        DoctestResult result = refresh ? null : read(file(key));
+        (result == null ? misses : hits).incrementAndGet();
+        return result;
+    }
+
+    /** Store a result under the given key. */
+    void store(String key, DoctestResult result) {
+        Properties p = new Properties();
+        p.setProperty("testsRun", Integer.toString(result.testsRun));
+        if (result.fail != null) {
+            String[] fail = result.fail.toArray();
+            for (int i=0; i<fail.length; i++)
+                if (fail[i] != null)
+                    p.setProperty("fail."+FAIL_FIELDS[i], fail[i]);
+        }
+        File f = file(key);
+        f.getParentFile().mkdirs(); // ensure directory exists
+        // write to a temporary file first, so readers never see a partial
+        // result.
+        File tmp = new File(f.getPath()+".tmp"+Thread.currentThread().getId());
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                tmp.renameTo(f);
+            }
+        } catch (IOException e) {
+            // the cache is just an optimization; ignore failures.
+            tmp.delete();
+        }
+    }
+
+    public String toString() {
+        return hits+" hits, "+misses+" misses"+
+            (refresh ? " (refreshed)" : "")+" in "+dir;
+    }
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    private static DoctestResult read(File f) {
+        if (!f.isFile()) return null;
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            String[] fail = null;
+            if (p.getProperty("fail.text") != null) {
+                fail = new String[FAIL_FIELDS.length];
+                for (int i=0; i<fail.length; i++)
+                    fail[i] = p.getProperty("fail."+FAIL_FIELDS[i]);
+            }
+            return new DoctestResult
+                (Integer.parseInt(p.getProperty("testsRun")),
+                 DoctestFailure.fromArray(fail));
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null; // corrupt entry
+        }
+    }
+
+    /** Normalize line endings and trailing whitespace. */
+    private static String normalize(String test_text) {
+        return test_text.replace("\r\n", "\n").replaceAll("[ \\t]+\\n", "\n")
+            .trim();
+    }
+
+    /** Return the class loader the doctests run by the given factory
+     *  will use.  A factory which hasn't been given an application class
+     *  loader returns null, and its contexts use the loader Rhino picks by
+     *  default. */
+    private static ClassLoader classLoader(ContextFactory contextFactory) {
+        ClassLoader loader = contextFactory.getApplicationClassLoader();
+        return (loader != null) ? loader :
+            ClassLookupCache.defaultLoader(contextFactory);
+    }
+
+    /** Hash the name, size, and modification time of every class file
+     *  and jar visible to the given class loader (and its parents). */
+    private static String fingerprint(ClassLoader loader) {
+        MessageDigest md = newDigest();
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if (l instanceof URLClassLoader)
+                fingerprint(md, ((URLClassLoader) l).getURLs());
+            else if (l == system)
+                // on JDK 9 and later the system class loader is not a
+                // URLClassLoader; its class path is still a property.
+                fingerprintClassPath(md);
+        }
+        return hex(md.digest());
+    }
+    private static void fingerprintClassPath(MessageDigest md) {
+        String path = System.getProperty("java.class.path", "");
+        for (String entry : path.split(File.pathSeparator))
+            if (entry.length() > 0)
+                fingerprint(md, new File(entry));
+    }
+    /** Hash the name, size, and modification time of every class file
+     *  and jar found at the given URLs. */
+    static String fingerprint(URL[] urls) {
+        MessageDigest md = newDigest();
+        fingerprint(md, urls);
+        return hex(md.digest());
+    }
+    private static void fingerprint(MessageDigest md, URL[] urls) {
+        for (URL u : urls) {
+            if (!"file".equals(u.getProtocol())) {
+                update(md, u.toString());
+                continue;
+            }
+            try {
+                fingerprint(md, new File(URLDecoder.decode
+                                         (u.getPath(), "utf-8")));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+    private static void fingerprint(MessageDigest md, File f) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            if (files == null) return;
+            Arrays.sort(files);
+            for (File ff : files)
+                fingerprint(md, ff);
+        } else if (f.getName().endsWith(".class") ||
+                   f.getName().endsWith(".jar")) {
+            update(md, f.getPath()+":"+f.length()+":"+f.lastModified());
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    static void update(MessageDigest md, String s) {
+        try {
+            md.update(s.getBytes("utf-8"));
+            md.update((byte) 0);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * Run the doctests found in a tree of java source files from the command
+ * line, without invoking javadoc.  The <code>@doc.test</code> blocks are
+ * extracted directly from the sources and evaluated in the same way the
+ * {@link JDoctest} taglet evaluates them.  Your compiled classes must be
+ * on the classpath:
+ * <pre>
+ * java -ea -cp lib/jdoctest/jdoctest.jar:lib/jdoctest/js.jar:tools.jar:bin \
+ *      net.cscott.jdoctest.RunJDoctests src
+ * </pre>
+ * Each argument can be a source directory or a single java source file.
+ * The exit status is nonzero if any doctest failed unexpectedly.
+ * @author C. Scott Ananian
+ */
+public class RunJDoctests {
+    private final ContextFactory contextFactory =
+        new JDoctest.JDoctestContextFactory();
+    private final PrintStream out;
+    private int passed = 0, expectedFail = 0;
+    private int unexpectedPass = 0, unexpectedFail = 0, overBudget = 0;
+
+    RunJDoctests(PrintStream out) { this.out = out; }
+
+    /** Run all the doctests beneath the directories (or in the source
+     *  files) named on the command line. */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java "+RunJDoctests.class.getName()+
+                               " <source dir or file>...");
+            System.exit(2);
+        }
+        List<File> sources = new ArrayList<File>();
+        for (String a : args)
+            DoctestExtractor.collectSources(new File(a), sources);
+        JDoctest.printVersion(System.err);
+        RunJDoctests runner = new RunJDoctests(System.err);
+        for (File f : sources)
+            runner.run(f);
+        System.err.println(runner);
+        System.exit(runner.isSuccessful() ? 0 : 1);
+    }
+
+    /** Run all the doctests in the given source file. */
+    void run(File sourceFile) throws IOException {
+        for (DoctestExtractor.Doctest dt : DoctestExtractor.extract(sourceFile))
+            run(dt);
+    }
+
+    /** Run and report a single doctest. */
+    void run(DoctestExtractor.Doctest dt) {
+        Timings t = new Timings();
+        String test_text = JDoctest.stripIndentation(dt.text);
+        t.lap(Timings.Phase.STRIP);
+        boolean expect_fail = Patterns.expectFail(test_text);
+        DoctestResult result = JDoctest.execute
+            (contextFactory, dt.packageName, dt.file.getName(), dt.line,
+             test_text);
+        t.add(result.timings);
+        if (result.overBudget) {
+            overBudget++;
+            out.println(dt+": error - "+result.fail);
+        } else if (result.fail == null && !expect_fail) {
+            passed++;
+        } else if (result.fail == null) {
+            unexpectedPass++;
+            out.println(dt+": error - doctest unexpectedly passed.");
+        } else if (expect_fail) {
+            expectedFail++;
+            out.println(dt+": warning - Doctest failed as expected");
+        } else {
+            unexpectedFail++;
+            out.println(dt+": error - "+result.fail);
+        }
+        t.lap(Timings.Phase.REPORT);
+        t.record(dt.packageName, dt.file.getPath(), dt.line, dt.tagNum+1,
+                 null, result.timings == null);
+    }
+
+    /** Return true if no doctest passed or failed unexpectedly, or went
+     *  over its budget. */
+    boolean isSuccessful() {
+        return unexpectedPass == 0 && unexpectedFail == 0 && overBudget == 0;
+    }
+
+    public String toString() {
+        return (passed+expectedFail+unexpectedPass+unexpectedFail+overBudget)+
+            " doctests: "+passed+" passed, "+unexpectedFail+" failed, "+
+            expectedFail+" failed as expected, "+unexpectedPass+
+            " passed unexpectedly, "+overBudget+" over budget.";
+    }
+}
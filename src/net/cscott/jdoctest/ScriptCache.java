@@ -0,0 +1,98 @@
+package net.cscott.jdoctest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * An in-process cache of compiled javascript.  Many doctests share the
+ * same package prologue and the same short statements, and a compiled
+ * {@link Script} can be executed any number of times, in any scope, so
+ * there's no need to parse and compile each of them over and over.
+ * <p>
+ * Scripts are keyed by their source text and name, and by the language
+ * version, optimization level, instruction counting, and context factory
+ * used to compile them.
+ * The least-recently used scripts are discarded once the cache holds
+ * more than {@code net.cscott.jdoctest.scriptCache} scripts (by default
+ * 1024; set it to 0 to disable the cache).  Set
+ * {@code net.cscott.jdoctest.scriptCache.stats} to {@code true} to print
+ * the cache hit rate when the JVM exits.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Compiling the same statement twice returns the same script:
+ *   js> var cx = Packages.org.mozilla.javascript.Context.getCurrentContext()
+ *   js> var s = ScriptCache.compile(cx, "1+2\n", "test")
+ *   js> ScriptCache.compile(cx, "1+2\n", "test") === s
+ *   true
+ */
+class ScriptCache {
+    private ScriptCache() { }
+
+    /** The maximum number of scripts to keep. */
+    static final int SIZE =
+        Integer.getInteger("net.cscott.jdoctest.scriptCache", 1024);
+
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    private static final Map<String,Script> scripts =
+        new LinkedHashMap<String,Script>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String,Script> e) {
+                return size() > SIZE;
+            }
+        };
+    static {
+        if (Boolean.getBoolean("net.cscott.jdoctest.scriptCache.stats"))
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    System.err.println("JDoctest script cache: "+stats());
+                }
+            });
+    }
+
+    /** Return the compiled form of the given source, compiling it in the
+     *  given context if it isn't already in the cache. */
+    static Script compile(Context cx, String source, String sourceName) {
+        if (SIZE <= 0)
+            return cx.compileString(source, sourceName, 1, null);
+        String key = cx.getLanguageVersion()+":"+cx.getOptimizationLevel()+
+            ":"+cx.generateObserverCount+
+            ":"+cx.getFactory().getClass().getName()+":"+sourceName+"\n"+
+            source;
+        Script script;
+        synchronized (scripts) {
+            script = scripts.get(key);
+        }
+        if (script != null) {
+            hits.incrementAndGet();
+            return script;
+        }
+        misses.incrementAndGet();
+        // compile outside the lock; two threads may occasionally compile
+        // the same script, which is harmless.
+        script = cx.compileString(source, sourceName, 1, null);
+        synchronized (scripts) {
+            scripts.put(key, script);
+        }
+        return script;
+    }
+
+    /** Discard all the cached scripts.  (Each compiled script holds on to
+     *  the application class loader it was compiled with.) */
+    static void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+    }
+
+    /** Return a summary of the cache's hit rate. */
+    static String stats() {
+        int h = hits.get(), m = misses.get();
+        return h+" hits, "+m+" misses ("+
+            ((h+m == 0) ? 0 : (100*h)/(h+m))+"% hit rate)";
+    }
+}
@@ -0,0 +1,251 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Split the doctests between several JVMs.  Set
+ * {@code net.cscott.jdoctest.shard.count} to the number of shards and
+ * {@code net.cscott.jdoctest.shard.index} to the index of the current
+ * shard (starting from 0), and {@link RerunJDoctests},
+ * {@link JDoctestRunner} and {@link JDoctestSuite} will only run the tests
+ * belonging to that shard.  Every test belongs to exactly one shard.
+ * <p>
+ * If {@code net.cscott.jdoctest.shard.durations} names a file of
+ * durations recorded by an earlier run, the tests listed there are
+ * divided so that each shard gets about the same total running time
+ * (by assigning the longest tests first, each to the shard with the least
+ * total time so far).  The remaining tests are then assigned in order of
+ * their paths, each also to the least-loaded shard, counting as the mean
+ * recorded duration.  Either way, the assignment only depends on the test
+ * paths and the durations file, so every shard computes the same one.
+ * ({@link JDoctestRunner} sees a single test at a time, so it assigns an
+ * unrecorded test by a hash of its path instead.)
+ * <p>
+ * To record durations, set {@code net.cscott.jdoctest.shard.record} to a
+ * file; the running time of every test which runs is merged into it when
+ * the JVM exits.  (Each shard should record to a separate file, or the
+ * shards will see different durations.)
+ * @author C. Scott Ananian
+ * @doc.test
+ *   The longest tests are spread across the shards first:
+ *   js> var keys = ["a", "b", "c", "d"], d = new java.util.HashMap()
+ *   js> keys.forEach(function(k, i) { d.put(k, [10, 9, 2, 1][i]); })
+ *   js> var m = Shards.balance(d, 2)
+ *   js> keys.map(function(k) { return m.get(k); })
+ *   0,1,1,0
+ * @doc.test
+ *   New tests go to the least-loaded shards, in order of their paths:
+ *   js> var d = new java.util.HashMap()
+ *   js> ["a", "b"].forEach(function(k, i) { d.put(k, [30, 10][i]); })
+ *   js> var others = java.util.Arrays.asList(["e", "d", "c"])
+ *   js> var m = Shards.balance(d, others, 2)
+ *   js> ["a", "b", "c", "d", "e"].map(function(k) { return m.get(k); })
+ *   0,1,1,0,1
+ */
+class Shards {
+    private Shards() { }
+
+    /** The number of shards, or 1 if sharding is disabled. */
+    static final int COUNT =
+        Integer.getInteger("net.cscott.jdoctest.shard.count", 1);
+    /** The index of the current shard. */
+    static final int INDEX =
+        Integer.getInteger("net.cscott.jdoctest.shard.index", 0);
+
+    private static Map<String,Long> durations = null;
+    private static Map<String,Integer> assignment = null;
+    private static Map<String,Long> recorded = null;
+
+    /** Return true if the test with the given path should run in the
+     *  current shard. */
+    static boolean contains(File test) {
+        if (COUNT <= 1) return true;
+        checkIndex();
+        String key = key(test);
+        Integer shard = assignment().get(key);
+        if (shard == null)
+            shard = (key.hashCode() & 0x7FFFFFFF) % COUNT;
+        return shard == INDEX;
+    }
+
+    /** Return the set of the given tests which should run in the
+     *  current shard.  Every shard should be given the same tests. */
+    static Set<File> select(Collection<File> tests) {
+        if (COUNT <= 1) return new HashSet<File>(tests);
+        checkIndex();
+        Map<String,Long> d = durations();
+        List<String> others = new ArrayList<String>();
+        for (File f : tests)
+            if (!d.containsKey(key(f)))
+                others.add(key(f));
+        Map<String,Integer> a = balance(d, others, COUNT);
+        Set<File> result = new HashSet<File>();
+        for (File f : tests)
+            if (a.get(key(f)) == INDEX)
+                result.add(f);
+        return result;
+    }
+
+    private static void checkIndex() {
+        if (INDEX < 0 || INDEX >= COUNT)
+            throw new IllegalArgumentException
+                ("Bad shard index "+INDEX+" for "+COUNT+" shards");
+    }
+
+    /** Record the running time of the given test, if requested. */
+    static void record(File test, long millis) {
+        Map<String,Long> r = recorded();
+        if (r != null) r.put(key(test), millis);
+    }
+
+    /** The name used for the given test in the durations files. */
+    private static String key(File test) {
+        return test.getPath().replace(File.separatorChar, '/');
+    }
+
+    private static synchronized Map<String,Long> durations() {
+        if (durations == null) {
+            String fileName =
+                System.getProperty("net.cscott.jdoctest.shard.durations");
+            durations = (fileName == null) ?
+                new HashMap<String,Long>() : read(new File(fileName));
+        }
+        return durations;
+    }
+    private static synchronized Map<String,Integer> assignment() {
+        if (assignment == null)
+            assignment = balance(durations(), COUNT);
+        return assignment;
+    }
+
+    /** Assign the given tests to shards, longest first, each to the
+     *  shard with the least total duration so far. */
+    static Map<String,Integer> balance(final Map<String,? extends Number> durations,
+                                       int count) {
+        return balance(durations, Collections.<String>emptyList(), count);
+    }
+    /** Assign the given tests to shards as {@link #balance(Map,int)}
+     *  does, and then the <code>others</code> (which have no recorded
+     *  duration) in order, each to the least-loaded shard. */
+    static Map<String,Integer> balance(final Map<String,? extends Number> durations,
+                                       Collection<String> others,
+                                       int count) {
+        List<String> keys = new ArrayList<String>(durations.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long da = durations.get(a).longValue();
+                long db = durations.get(b).longValue();
+                if (da != db) return (da > db) ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+        long[] load = new long[count];
+        Map<String,Integer> result = new HashMap<String,Integer>();
+        for (String key : keys) {
+            int best = 0;
+            for (int i=1; i<count; i++)
+                if (load[i] < load[best]) best = i;
+            load[best] += durations.get(key).longValue();
+            result.put(key, best);
+        }
+        // count each of the others as the mean recorded duration.
+        long estimate = 1;
+        if (!keys.isEmpty()) {
+            long total = 0;
+            for (long l : load)
+                total += l;
+            estimate = Math.max(1, total / keys.size());
+        }
+        List<String> sorted = new ArrayList<String>(others);
+        Collections.sort(sorted);
+        for (String key : sorted) {
+            int best = 0;
+            for (int i=1; i<count; i++)
+                if (load[i] < load[best]) best = i;
+            load[best] += estimate;
+            result.put(key, best);
+        }
+        return result;
+    }
+
+    private static synchronized Map<String,Long> recorded() {
+        if (recorded != null) return recorded;
+        final String fileName =
+            System.getProperty("net.cscott.jdoctest.shard.record");
+        if (fileName == null) return null;
+        recorded = new ConcurrentHashMap<String,Long>();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                write(new File(fileName), recorded);
+            }
+        });
+        return recorded;
+    }
+
+    private static Map<String,Long> read(File f) {
+        Map<String,Long> result = new HashMap<String,Long>();
+        if (!f.isFile()) return result;
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("WARNING: Can't read durations from "+f);
+            return result;
+        }
+        for (Object key : p.keySet()) {
+            try {
+                result.put((String) key,
+                           Long.valueOf(p.getProperty((String) key)));
+            } catch (NumberFormatException e) {
+                /* skip bad entry */
+            }
+        }
+        return result;
+    }
+
+    /** Merge the given durations into the given file. */
+    private static void write(File f, Map<String,Long> durations) {
+        Map<String,Long> merged = read(f);
+        merged.putAll(durations);
+        Properties p = new Properties();
+        for (Map.Entry<String,Long> e : merged.entrySet())
+            p.setProperty(e.getKey(), e.getValue().toString());
+        File tmp = new File(f.getPath()+".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                p.store(out, "JDoctest test durations, in milliseconds");
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                tmp.renameTo(f);
+            }
+        } catch (IOException e) {
+            System.err.println("WARNING: Can't write durations to "+f);
+            tmp.delete();
+        }
+    }
+}
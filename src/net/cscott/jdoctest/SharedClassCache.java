@@ -0,0 +1,123 @@
+package net.cscott.jdoctest;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.ClassCache;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * A single Rhino {@link ClassCache} shared by every doctest scope in the
+ * process.  Normally each new top-level scope gets its own
+ * {@link ClassCache}, so every doctest which touches a Java class
+ * reflects over all of its members (and, with
+ * {@link Context#FEATURE_ENHANCED_JAVA_ACCESS}, makes them all
+ * accessible) again.  Instead, we associate one cache with every
+ * {@link org.mozilla.javascript.tools.shell.Global} we create, before it
+ * is initialized.  Rhino's class cache is already thread-safe, since it
+ * is meant to be shared by threads using a sealed shared scope.
+ * <p>
+ * The reflected members are owned by a private sealed scope, so that a
+ * doctest which modifies its own standard objects can't affect the Java
+ * methods seen by later doctests.  Set the
+ * {@code net.cscott.jdoctest.sharedClassCache} property to {@code false}
+ * to give each doctest its own class cache again.  Set
+ * {@code net.cscott.jdoctest.sharedClassCache.stats} to {@code true} to
+ * print the number of class scans done and avoided when the JVM exits.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Java classes are only reflected once, no matter how many doctests
+ *   use them:
+ *   js> importPackage(Packages.net.cscott.jdoctest)
+ *   js> var n = SharedClassCache.reused()
+ *   js> new java.util.BitSet(); new java.util.BitSet()
+ *   {}
+ *   js> SharedClassCache.reused() > n
+ *   true
+ */
+class SharedClassCache {
+    private SharedClassCache() { }
+
+    /** True if all doctests share a single class cache. */
+    static final boolean ENABLED = !"false".equals
+        (System.getProperty("net.cscott.jdoctest.sharedClassCache"));
+
+    private static final AtomicInteger scanned = new AtomicInteger();
+    private static final AtomicInteger reused = new AtomicInteger();
+    private static ClassCache cache = null;
+    private static Object cacheKey = null;
+    private static Field cacheTable = null;
+    private static boolean failed = !ENABLED;
+
+    /** Make the shared class cache the class cache of the given top-level
+     *  scope.  This must be called before the scope's standard objects
+     *  are initialized. */
+    static void associate(Context cx, ScriptableObject topScope) {
+        ClassCache cc = get(cx);
+        if (cc != null)
+            topScope.associateValue(cacheKey, cc);
+    }
+
+    /** Return the number of reflective class scans done so far. */
+    static int scanned() { return scanned.get(); }
+    /** Return the number of class scans avoided so far. */
+    static int reused() { return reused.get(); }
+
+    /** Forget every class reflected so far, so that classes from a
+     *  discarded class loader can be collected. */
+    static synchronized void clear() {
+        if (cache == null) return;
+        cache.clearCaches();
+        try {
+            cacheTable.set(cache, new CountingMap());
+        } catch (IllegalAccessException e) {
+            // Rhino will make a new (uncounted) table itself.
+        }
+    }
+
+    private static synchronized ClassCache get(Context cx) {
+        if (cache != null || failed) return cache;
+        // ClassCache.associate() would also make each new scope the
+        // owner of all subsequently reflected members, so we need the
+        // key it uses.
+        try {
+            Field key = ClassCache.class.getDeclaredField("AKEY");
+            key.setAccessible(true);
+            Field table = ClassCache.class.getDeclaredField("classTable");
+            table.setAccessible(true);
+            ScriptableObject owner = cx.initStandardObjects(null, true);
+            ClassCache cc = ClassCache.get(owner);
+            table.set(cc, new CountingMap());
+            cacheKey = key.get(null);
+            cacheTable = table;
+            cache = cc;
+        } catch (Exception e) {
+            // a different version of Rhino; fall back to a cache per scope.
+            failed = true;
+            return null;
+        }
+        if (Boolean.getBoolean("net.cscott.jdoctest.sharedClassCache.stats"))
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    System.err.println("JDoctest class cache: "+scanned+
+                                       " classes scanned, "+reused+
+                                       " scans avoided");
+                }
+            });
+        return cache;
+    }
+
+    /** The class table of the shared cache, which counts lookups.  Rhino
+     *  reflects over a class whenever it isn't found in this table. */
+    private static class CountingMap extends ConcurrentHashMap<Object,Object> {
+        private static final long serialVersionUID = 2788357417207340386L;
+        CountingMap() { super(256); }
+        public Object get(Object key) {
+            Object value = super.get(key);
+            (value == null ? scanned : reused).incrementAndGet();
+            return value;
+        }
+    }
+}
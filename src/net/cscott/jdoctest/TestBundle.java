@@ -0,0 +1,349 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A single file holding all of the emitted doctests, instead of a
+ * directory tree with one small file per test.  Set the
+ * {@code net.cscott.jdoctest.output.bundle} property to {@code true}
+ * (along with {@code net.cscott.jdoctest.output}) to emit tests this way.
+ * <p>
+ * The bundle is made of two files in the output directory:
+ * {@value #DATA}, which holds the name and text of each test, one after
+ * the other, and {@value #INDEX}, which holds a short header and then a
+ * fixed-size record for each test giving its offset in the data file
+ * and the lengths of its name and text.  Both are only ever appended to
+ * (a new bundle is started by the first test written by each JVM), and
+ * both are memory-mapped when read, so that tests can be listed and read
+ * by number without touching the filesystem again.
+ * <p>
+ * Tests in a bundle are named by the paths they would have had as
+ * separate files, relative to the output directory, and
+ * {@link JsJUnitTestBridge} reads them by those paths, so
+ * {@link RerunJDoctests}, {@link CompileJDoctests}, {@link Shards} and
+ * the {@link JDoctestServer} work the same way with either layout.
+ * <p>
+ * The files of a bundle are kept open while tests are being added, and
+ * are closed by {@link #closeAll} (which {@link TestWriter} calls when its
+ * queue has been flushed) so that they can be deleted or replaced.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Tests are read back by number, or by their paths, and a bundle
+ *   whose files are closed is reopened, not replaced, by the next test:
+ *   js> var dir = java.io.File.createTempFile("jdoctest", ".d")
+ *   js> dir["delete"]() && dir.mkdir()
+ *   true
+ *   js> TestBundle.append(dir, "a/test-A-1-1.js", "test A")
+ *   js> var t = "test B, caf" + String.fromCharCode(233)
+ *   js> TestBundle.append(dir, "b/test-B-2-1.js", t)
+ *   js> var b = TestBundle.open(dir)
+ *   js> b.size()
+ *   2
+ *   js> b.name(1)
+ *   b/test-B-2-1.js
+ *   js> b.text(1) == t
+ *   true
+ *   js> TestBundle.lookup(new java.io.File(dir, "a/test-A-1-1.js"))
+ *   test A
+ *   js> TestBundle.lookup(new java.io.File(dir, "a/test-A-9-1.js"))
+ *   null
+ *   js> TestBundle.closeAll()
+ *   js> TestBundle.append(dir, "c/test-C-3-1.js", "test C")
+ *   js> TestBundle.closeAll()
+ *   js> b = TestBundle.open(dir); b.size()
+ *   3
+ *   js> [b.name(0), b.text(2)].join()
+ *   a/test-A-1-1.js,test C
+ *   js> [TestBundle.DATA, TestBundle.INDEX].every(function(n) {
+ *     >   return new java.io.File(dir, n)["delete"]();
+ *     > }) && dir["delete"]()
+ *   true
+ */
+class TestBundle {
+    /** The name of the data file of a bundle. */
+    static final String DATA = "tests.bundle";
+    /** The name of the index file of a bundle. */
+    static final String INDEX = "tests.bundle.index";
+    /** True if emitted tests should be written to a bundle. */
+    static final boolean ENABLED =
+        Boolean.getBoolean("net.cscott.jdoctest.output.bundle");
+
+    /** The first four bytes of the index file. */
+    private static final int MAGIC = 0x4A445442; // "JDTB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    /** Each index record: a long offset, and int name and text lengths. */
+    private static final int RECORD_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    /** The bundles being written by this JVM, by directory. */
+    private static final Map<String,Writer> writers =
+        new HashMap<String,Writer>();
+    /** The directories whose old bundles have been discarded. */
+    private static final Set<String> discarded = new HashSet<String>();
+    /** The bundles read so far, by directory (or NONE, if a directory
+     *  has no bundle). */
+    private static final Map<String,TestBundle> bundles =
+        new HashMap<String,TestBundle>();
+    private static final TestBundle NONE = new TestBundle(null, null, 0, 0);
+
+    private final ByteBuffer data;
+    private final ByteBuffer index;
+    private final long indexLength, indexModified;
+    private Map<String,Integer> byName = null;
+
+    private TestBundle(ByteBuffer data, ByteBuffer index,
+                       long indexLength, long indexModified) {
+        this.data = data;
+        this.index = index;
+        this.indexLength = indexLength;
+        this.indexModified = indexModified;
+    }
+
+    // --- reading ---
+
+    /** Return the bundle in the given directory, or null if there isn't
+     *  one.  The bundle is mapped again if it has changed since it was
+     *  last opened. */
+    static TestBundle open(File dir) throws IOException {
+        File indexFile = new File(dir, INDEX);
+        String key = dir.getPath();
+        synchronized (bundles) {
+            TestBundle b = bundles.get(key);
+            if (b != null && b.indexLength == indexFile.length() &&
+                b.indexModified == indexFile.lastModified())
+                return (b == NONE) ? null : b;
+            b = indexFile.isFile() ? map(dir, indexFile) : NONE;
+            bundles.put(key, b);
+            return (b == NONE) ? null : b;
+        }
+    }
+
+    private static TestBundle map(File dir, File indexFile)
+        throws IOException {
+        // read the length and date first, so a concurrent writer can only
+        // make us map the bundle again unnecessarily.
+        long length = indexFile.length(), modified = indexFile.lastModified();
+        ByteBuffer index = map(indexFile);
+        if (index.remaining() < HEADER_SIZE || index.getInt(0) != MAGIC ||
+            index.getInt(4) != VERSION)
+            throw new IOException("Bad doctest bundle index: "+indexFile);
+        return new TestBundle(map(new File(dir, DATA)), index,
+                              length, modified);
+    }
+
+    private static ByteBuffer map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException("Doctest bundle too large: "+f);
+            MappedByteBuffer mb =
+                ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return mb; // the mapping stays valid after the file is closed.
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Return the number of tests in this bundle. */
+    int size() {
+        return (index.limit() - HEADER_SIZE) / RECORD_SIZE;
+    }
+    /** Return the name of the test with the given number. */
+    String name(int i) {
+        int r = HEADER_SIZE + i*RECORD_SIZE;
+        return decode(index.getLong(r), index.getInt(r+8));
+    }
+    /** Return the text of the test with the given number. */
+    String text(int i) {
+        int r = HEADER_SIZE + i*RECORD_SIZE;
+        return decode(index.getLong(r) + index.getInt(r+8),
+                      index.getInt(r+12));
+    }
+    private String decode(long offset, int length) {
+        ByteBuffer b = data.duplicate();
+        b.position((int) offset);
+        b.limit((int) offset + length);
+        return UTF8.decode(b).toString();
+    }
+    /** Return the number of the test with the given name, or -1. */
+    synchronized int find(String name) {
+        if (byName == null) {
+            byName = new HashMap<String,Integer>();
+            for (int i=0; i<size(); i++)
+                byName.put(name(i), i); // later tests win.
+        }
+        Integer i = byName.get(name);
+        return (i == null) ? -1 : i;
+    }
+
+    /** Return the text of the given test, if it is stored in a bundle
+     *  (in the grandparent directory of its path), or else null. */
+    static String lookup(File test) {
+        File pkgDir = test.getParentFile();
+        File dir = (pkgDir == null) ? null : pkgDir.getParentFile();
+        if (dir == null) return null;
+        TestBundle b;
+        synchronized (bundles) {
+            b = bundles.get(dir.getPath());
+        }
+        try {
+            if (b == null) b = open(dir);
+        } catch (IOException e) {
+            return null;
+        }
+        if (b == null || b == NONE) return null;
+        int i = b.find(pkgDir.getName()+"/"+test.getName());
+        return (i < 0) ? null : b.text(i);
+    }
+
+    // --- writing ---
+
+    /** Add a test with the given name and text to the bundle in the
+     *  given directory.  The first test added to a directory by this JVM
+     *  replaces any bundle which was already there. */
+    static void append(File dir, String name, String text)
+        throws IOException {
+        synchronized (writers) {
+            Writer w = writers.get(dir.getPath());
+            if (w == null) {
+                w = new Writer(dir);
+                writers.put(dir.getPath(), w);
+            }
+            w.append(name, text);
+        }
+    }
+
+    /** Close the files of every bundle being written.  A bundle which
+     *  is added to again is reopened, and keeps its earlier tests. */
+    static void closeAll() throws IOException {
+        IOException failure = null;
+        synchronized (writers) {
+            for (Writer w : writers.values()) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /** Remove any bundle left in the given directory by an earlier run,
+     *  so that it won't hide tests written as separate files.  Only the
+     *  first call for each directory does anything. */
+    static void discard(File dir) {
+        synchronized (writers) {
+            if (writers.containsKey(dir.getPath()) ||
+                !discarded.add(dir.getPath()))
+                return;
+            new File(dir, INDEX).delete();
+            new File(dir, DATA).delete();
+        }
+    }
+
+    private static class Writer {
+        private final File dataFile, indexFile;
+        /** The open files, or null when the writer is closed. */
+        private FileChannel data = null, index = null;
+        /** The lengths of the data and index files. */
+        private long offset = 0, indexLength = 0;
+        Writer(File dir) throws IOException {
+            dir.mkdirs(); // ensure directory exists
+            this.dataFile = new File(dir, DATA);
+            this.indexFile = new File(dir, INDEX);
+            // delete, rather than truncate, the old files: a reader may
+            // still have them mapped.
+            indexFile.delete();
+            dataFile.delete();
+            open();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            try {
+                write(index, header);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            indexLength = HEADER_SIZE;
+        }
+        private void open() throws IOException {
+            FileChannel d = new RandomAccessFile(dataFile, "rw").getChannel();
+            FileChannel i = null;
+            try {
+                i = new RandomAccessFile(indexFile, "rw").getChannel();
+                // drop anything left by a test which failed part way.
+                if (d.size() > offset) d.truncate(offset);
+                if (i.size() > indexLength) i.truncate(indexLength);
+            } catch (IOException e) {
+                d.close();
+                if (i != null) i.close();
+                throw e;
+            }
+            this.data = d;
+            this.index = i;
+        }
+        void close() throws IOException {
+            if (data == null) return;
+            try {
+                data.close();
+            } finally {
+                data = null;
+                try {
+                    index.close();
+                } finally {
+                    index = null;
+                }
+            }
+        }
+        void append(String name, String text) throws IOException {
+            ByteBuffer n = UTF8.encode(name), t = UTF8.encode(text);
+            int nameLength = n.remaining(), textLength = t.remaining();
+            if (data == null) open();
+            boolean done = false;
+            try {
+                // write the data before the record which points at it.
+                data.position(offset);
+                write(data, n);
+                write(data, t);
+                ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                record.putLong(offset).putInt(nameLength).putInt(textLength);
+                record.flip();
+                index.position(indexLength);
+                write(index, record);
+                done = true;
+            } finally {
+                if (!done) {
+                    // don't leave a partial test for the next record to
+                    // be written after.
+                    try {
+                        data.truncate(offset);
+                        index.truncate(indexLength);
+                    } catch (IOException e) {
+                        // the next test reopens the files, and tries again.
+                        try { close(); } catch (IOException ee) { }
+                    }
+                }
+            }
+            offset += nameLength + textLength;
+            indexLength += RECORD_SIZE;
+        }
+        private static void write(FileChannel ch, ByteBuffer b)
+            throws IOException {
+            while (b.hasRemaining())
+                ch.write(b);
+        }
+    }
+}
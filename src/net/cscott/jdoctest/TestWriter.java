@@ -0,0 +1,299 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.sun.javadoc.DocErrorReporter;
+import com.sun.javadoc.SourcePosition;
+
+/**
+ * Write the tests emitted by JDoctest (see the
+ * {@code net.cscott.jdoctest.output} property) on a background thread,
+ * so that javadoc doesn't wait for the filesystem.  The writer thread
+ * takes all the tests queued so far as a batch, creating each directory
+ * only once.  Each test file is written to a temporary file which is then
+ * renamed into place, so readers never see a partial test, and a file
+ * which already has exactly the right contents isn't written at all, so
+ * its modification time only changes when the test does.
+ * <p>
+ * {@link #flushAll} waits for every queued test to be written; the
+ * JDoctest doclets call it (through {@link Prescan#finish}) when javadoc
+ * is done, and otherwise the queue is flushed when the JVM exits.  Errors
+ * are reported on the javadoc thread, when the next test is emitted or
+ * when the queue is flushed.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   A test is written when the queue is flushed, and only rewritten if
+ *   it has changed; a test which can't be written is reported, and
+ *   doesn't stop the queue being flushed:
+ *   js> var dir = java.io.File.createTempFile("jdoctest", ".d")
+ *   js> dir["delete"]() && dir.mkdir()
+ *   true
+ *   js> function emit(text) {
+ *     >   TestWriter.emit(dir, "p", "test-T-1-1.js", text, null, null);
+ *     >   TestWriter.flush();
+ *     > }
+ *   js> var f = new java.io.File(dir, "p/test-T-1-1.js")
+ *   js> emit("first"); f.length()
+ *   5
+ *   js> f.setLastModified(1000000000)
+ *   true
+ *   js> emit("first"); f.lastModified()
+ *   1000000000
+ *   js> emit("second"); f.length()
+ *   6
+ *   js> f.lastModified() == 1000000000
+ *   false
+ *   js> var errors = []
+ *   js> var reporter = new com.sun.javadoc.DocErrorReporter({
+ *     >   printError: function(sp, msg) { errors.push(String(msg)); }
+ *     > })
+ *   js> TestWriter.emit(dir, "p", "test-T-2-1.js", null, null, reporter)
+ *   js> TestWriter.flush(); errors.length
+ *   1
+ *   js> errors[0] == "Couldn't write to " + new java.io.File(dir, "p/test-T-2-1.js")
+ *   true
+ *   js> f["delete"]() && f.getParentFile()["delete"]() && dir["delete"]()
+ *   true
+ */
+class TestWriter {
+    private TestWriter() { }
+
+    /** The doclet and the taglet are loaded by different class loaders,
+     *  so the taglet's flush operation is handed to the doclet in the
+     *  system properties, as a {@link Runnable}. */
+    private static final String FLUSH_KEY = "net.cscott.jdoctest.output.flush";
+
+    private static final BlockingQueue<Job> queue =
+        new LinkedBlockingQueue<Job>();
+    private static final Object lock = new Object();
+    /** The number of jobs queued but not yet done; guarded by lock. */
+    private static int pending = 0;
+    /** Jobs which failed, and haven't been reported yet; guarded by
+     *  lock. */
+    private static final List<Job> failed = new ArrayList<Job>();
+    private static Thread worker = null;
+    /** The directories we know exist; only used by the worker thread. */
+    private static final Set<File> madeDirs = new HashSet<File>();
+
+    /** A single test to be written. */
+    private static class Job {
+        final File outputDir;
+        final String packageName, fileName, contents;
+        final SourcePosition sp;
+        final DocErrorReporter reporter;
+        /** The file this job writes to. */
+        final File file;
+        Job(File outputDir, String packageName, String fileName,
+            String contents, SourcePosition sp, DocErrorReporter reporter) {
+            this.outputDir = outputDir;
+            this.packageName = packageName;
+            this.fileName = fileName;
+            this.contents = contents;
+            this.sp = sp;
+            this.reporter = reporter;
+            this.file = TestBundle.ENABLED ?
+                new File(outputDir, TestBundle.DATA) :
+                new File(new File(outputDir, packageName), fileName);
+        }
+    }
+
+    /** Queue a test to be written as <code>fileName</code> in the
+     *  directory for <code>packageName</code> beneath
+     *  <code>outputDir</code> (or into the {@link TestBundle} in
+     *  <code>outputDir</code>).  A failure will be reported to
+     *  <code>reporter</code>, or if it is null, will end the JVM. */
+    static void emit(File outputDir, String packageName, String fileName,
+                     String contents, SourcePosition sp,
+                     DocErrorReporter reporter) {
+        reportFailures(true);
+        synchronized (lock) {
+            if (worker == null)
+                start();
+            pending++;
+        }
+        queue.add(new Job(outputDir, packageName, fileName, contents,
+                          sp, reporter));
+    }
+
+    /** Wait until all the queued tests of this class loader's writer are
+     *  written, and report any failures. */
+    static void flush() {
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        closeBundles();
+        reportFailures(true);
+    }
+
+    /** Wait until all queued tests are written, whichever class loader
+     *  loaded the taglet that emitted them. */
+    static void flushAll() {
+        Object flusher = System.getProperties().get(FLUSH_KEY);
+        if (flusher instanceof Runnable)
+            ((Runnable) flusher).run();
+    }
+
+    private static void start() {
+        worker = new Thread("JDoctest test writer") {
+            public void run() {
+                List<Job> batch = new ArrayList<Job>();
+                while (true) {
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    queue.drainTo(batch);
+                    try {
+                        for (Job job : batch)
+                            write(job);
+                    } finally {
+                        // never leave flush() waiting for a lost batch.
+                        synchronized (lock) {
+                            pending -= batch.size();
+                            lock.notifyAll();
+                        }
+                        batch.clear();
+                    }
+                }
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+        System.getProperties().put(FLUSH_KEY, new Runnable() {
+            public void run() { flush(); }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                synchronized (lock) {
+                    while (pending > 0) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                closeBundles();
+                reportFailures(false);
+            }
+        });
+    }
+
+    /** Write a single test, on the worker thread. */
+    private static void write(Job job) {
+        try {
+            if (TestBundle.ENABLED) {
+                TestBundle.append(job.outputDir,
+                                  job.packageName+"/"+job.fileName,
+                                  job.contents);
+                return;
+            }
+            // don't let an old bundle hide the new test files.
+            TestBundle.discard(job.outputDir);
+            File dir = job.file.getParentFile();
+            byte[] bytes = job.contents.getBytes("utf-8");
+            if (sameContents(job.file, bytes))
+                return;
+            if (madeDirs.add(dir))
+                dir.mkdirs(); // ensure directory exists
+            File tmp = new File(dir, "."+job.fileName+".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(job.file)) {
+                job.file.delete();
+                if (!tmp.renameTo(job.file)) {
+                    tmp.delete();
+                    throw new IOException("can't rename "+tmp);
+                }
+            }
+        } catch (IOException e) {
+            fail(job);
+        } catch (RuntimeException e) {
+            fail(job);
+        }
+    }
+    private static void fail(Job job) {
+        synchronized (lock) {
+            failed.add(job);
+        }
+    }
+
+    /** Close the files of the bundles we've written to, so that they
+     *  can be deleted or replaced; more tests will reopen them. */
+    private static void closeBundles() {
+        if (!TestBundle.ENABLED) return;
+        try {
+            TestBundle.closeAll();
+        } catch (IOException e) {
+            System.err.println("ERROR: Couldn't close doctest bundle: "+e);
+        }
+    }
+
+    /** Return true if the given file holds exactly the given bytes. */
+    private static boolean sameContents(File f, byte[] bytes)
+        throws IOException {
+        if (f.length() != bytes.length || !f.isFile())
+            return false;
+        byte[] buf = new byte[bytes.length];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < buf.length) {
+                int r = in.read(buf, n, buf.length - n);
+                if (r < 0) return false;
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.equals(buf, bytes);
+    }
+
+    /** Report the tests we failed to write.  While javadoc is running
+     *  (<code>running</code> is true), failures go to the error reporter,
+     *  and a failure without an error reporter ends the JVM; once the JVM
+     *  is shutting down they are just printed. */
+    private static void reportFailures(boolean running) {
+        List<Job> jobs;
+        synchronized (lock) {
+            if (failed.isEmpty()) return;
+            jobs = new ArrayList<Job>(failed);
+            failed.clear();
+        }
+        for (Job job : jobs) {
+            String msg = "Couldn't write to "+job.file;
+            if (running && job.reporter!=null)
+                job.reporter.printError(job.sp, msg);
+            else {
+                System.err.println("ERROR: "+job.sp+": "+msg);
+                if (running) System.exit(3);
+            }
+        }
+    }
+}
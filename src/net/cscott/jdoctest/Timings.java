@@ -0,0 +1,228 @@
+package net.cscott.jdoctest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Time the phases of running each doctest, with a monotonic clock.  Set
+ * the {@code net.cscott.jdoctest.timings} property to the name of a file,
+ * and when the JVM exits it will hold one line of JSON for each doctest
+ * run, giving its package, source file and line, and the nanoseconds
+ * spent in each {@link Phase}:
+ * <pre>
+ * {"package":"net.cscott.jdoctest","file":"src/.../JDoctest.java","line":47,"tag":1,"cached":false,"total_ns":5183022,"strip_ns":10432,...}
+ * </pre>
+ * The file ends with the slowest
+ * {@code net.cscott.jdoctest.timings.slowest} doctests (by default 10),
+ * slowest first, as the same records with an added {@code "slowest"}
+ * rank; they are printed when the JVM exits, too.  Tests rerun by
+ * {@link JsJUnitTestBridge} are recorded in the same way, along with the
+ * {@code "script"} they were read from.  A doctest whose result was
+ * replayed from the {@link ResultCache} is marked {@code "cached"}, and
+ * spends no time in the evaluation phases.
+ * <p>
+ * The doclet and the taglet are loaded by different class loaders, so
+ * the records are kept in a list stored in the system properties, and
+ * evaluation timings travel with each {@link DoctestResult}.
+ * @author C. Scott Ananian
+ * @doc.test
+ *   Each lap adds the time since the last one to a phase:
+ *   js> var t = new Timings()
+ *   js> t.lap(Timings.Phase.STRIP); t.lap(Timings.Phase.RUN)
+ *   js> t.nanos.length == Timings.Phase.values().length
+ *   true
+ *   js> t.total() >= t.nanos[Timings.Phase.RUN.ordinal()]
+ *   true
+ * @doc.test
+ *   Records are written as JSON:
+ *   js> var t = new Timings(); t.nanos[Timings.Phase.RUN.ordinal()] = 42
+ *   42
+ *   js> t.json("p", "a\"b.java", 3, 1, null, false)
+ *   {"package":"p","file":"a\"b.java","line":3,"tag":1,"cached":false,"total_ns":42,"read_ns":0,"strip_ns":0,"context_ns":0,"scope_ns":0,"prologue_ns":0,"run_ns":42,"diff_ns":0,"escape_ns":0,"report_ns":0,"emit_ns":0,"typeset_ns":0}
+ */
+class Timings {
+    /** The phases of running a doctest, in the order they happen. */
+    enum Phase {
+        /** Reading an emitted test (when rerunning tests). */
+        READ,
+        /** Stripping the indentation from the test. */
+        STRIP,
+        /** Entering the javascript context. */
+        CONTEXT,
+        /** Creating the scope the test runs in. */
+        SCOPE,
+        /** Evaluating the package prologue. */
+        PROLOGUE,
+        /** Running the test itself. */
+        RUN,
+        /** Diffing and formatting the output of a failed statement. */
+        DIFF,
+        /** Formatting any other failure message. */
+        ESCAPE,
+        /** Counting and reporting the result. */
+        REPORT,
+        /** Queueing the test to be emitted to a file. */
+        EMIT,
+        /** Typesetting the test as HTML. */
+        TYPESET;
+    }
+
+    /** The file to write timings to, or null if timing is disabled. */
+    private static final String FILE =
+        System.getProperty("net.cscott.jdoctest.timings");
+    /** True if timings should be recorded. */
+    private static final boolean ENABLED = (FILE != null);
+    /** The number of slowest doctests to summarize. */
+    private static final int SLOWEST =
+        Integer.getInteger("net.cscott.jdoctest.timings.slowest", 10);
+    private static final String RECORDS_KEY =
+        "net.cscott.jdoctest.timings.records";
+
+    /** Nanoseconds spent in each phase, indexed by ordinal. */
+    final long[] nanos;
+    private long mark;
+
+    /** Start timing a doctest. */
+    Timings() {
+        this.nanos = new long[Phase.values().length];
+        this.mark = System.nanoTime();
+    }
+
+    /** Add the time since the last lap (or the start) to the given
+     *  phase. */
+    void lap(Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - mark;
+        mark = now;
+    }
+    /** Add the phase timings of another part of the test, and restart
+     *  the clock. */
+    void add(long[] phases) {
+        if (phases != null)
+            for (int i=0; i<nanos.length; i++)
+                nanos[i] += phases[i];
+        mark = System.nanoTime();
+    }
+    /** Return the total time spent in all phases. */
+    long total() {
+        long total = 0;
+        for (long n : nanos)
+            total += n;
+        return total;
+    }
+
+    /** Record the timings of the given doctest; <code>tag</code> is its
+     *  number (from 1) within its doc comment, or 0 if unknown, and
+     *  <code>script</code> is the emitted test it was rerun from, or
+     *  null. */
+    void record(String packageName, String file, int line, int tag,
+                String script, boolean cached) {
+        if (!ENABLED) return;
+        records().add(new Object[] {
+            total(), json(packageName, file, line, tag, script, cached),
+            file+":"+line
+        });
+    }
+
+    /** Return this record as a line of JSON. */
+    String json(String packageName, String file, int line, int tag,
+                String script, boolean cached) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"package\":").append(quote(packageName));
+        sb.append(",\"file\":").append(quote(file));
+        sb.append(",\"line\":").append(line);
+        if (tag > 0)
+            sb.append(",\"tag\":").append(tag);
+        if (script != null)
+            sb.append(",\"script\":").append(quote(script));
+        sb.append(",\"cached\":").append(cached);
+        sb.append(",\"total_ns\":").append(total());
+        for (Phase p : Phase.values())
+            sb.append(",\"").append(p.name().toLowerCase()).append("_ns\":")
+                .append(nanos[p.ordinal()]);
+        return sb.append('}').toString();
+    }
+    private static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /** Return the list of records shared by all class loaders, creating
+     *  it (and the shutdown hook which writes it) if necessary. */
+    @SuppressWarnings("unchecked")
+    private static List<Object[]> records() {
+        synchronized (System.getProperties()) {
+            Object o = System.getProperties().get(RECORDS_KEY);
+            if (o != null) return (List<Object[]>) o;
+            final List<Object[]> records =
+                Collections.synchronizedList(new ArrayList<Object[]>());
+            System.getProperties().put(RECORDS_KEY, records);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    write(new File(FILE), records);
+                }
+            });
+            return records;
+        }
+    }
+
+    /** Write all the records, and then the slowest of them, to the given
+     *  file. */
+    private static void write(File f, List<Object[]> records) {
+        List<Object[]> all;
+        synchronized (records) {
+            all = new ArrayList<Object[]>(records);
+        }
+        List<Object[]> slowest = new ArrayList<Object[]>(all);
+        Collections.sort(slowest, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                long ta = (Long) a[0], tb = (Long) b[0];
+                return (ta == tb) ? 0 : (ta > tb) ? -1 : 1;
+            }
+        });
+        slowest = slowest.subList(0, Math.min(SLOWEST, slowest.size()));
+        File tmp = new File(f.getPath()+".tmp");
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter
+                (new FileOutputStream(tmp), "utf-8"));
+            try {
+                for (Object[] r : all)
+                    out.println(r[1]);
+                for (int i=0; i<slowest.size(); i++)
+                    out.println("{\"slowest\":"+(i+1)+","+
+                                ((String) slowest.get(i)[1]).substring(1));
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                tmp.renameTo(f);
+            }
+        } catch (IOException e) {
+            System.err.println("WARNING: Can't write timings to "+f);
+            tmp.delete();
+            return;
+        }
+        System.err.println("JDoctest timings: "+all.size()+
+                           " doctests written to "+f+"; slowest:");
+        for (Object[] r : slowest)
+            System.err.println("  "+((Long) r[0])/1000000+" ms  "+r[2]);
+    }
+}